@@ -7,5 +7,6 @@ if ! command -v awslocal >/dev/null 2>&1; then
 fi
 
 awslocal sqs create-queue --queue-name leaky-bucket
+awslocal sqs create-queue --queue-name leaky-bucket-low
 
-echo "[init] SQS queue 'leaky-bucket' created (or already exists)."
\ No newline at end of file
+echo "[init] SQS queues 'leaky-bucket' and 'leaky-bucket-low' created (or already exist)."
\ No newline at end of file
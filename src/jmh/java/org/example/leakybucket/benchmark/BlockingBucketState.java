@@ -0,0 +1,22 @@
+package org.example.leakybucket.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The shared bucket for the blocking benchmarks, only at the limit whose refill outpaces the
+ * threads, so {@code consume} never parks. At the default limit they would measure the refill rate,
+ * not the bucket.
+ */
+@State(Scope.Benchmark)
+public class BlockingBucketState extends SharedBucketState {
+
+    @Param({"360000000000"})
+    public long limit;
+
+    @Override
+    protected long limit() {
+        return limit;
+    }
+}
@@ -0,0 +1,21 @@
+package org.example.leakybucket.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The shared bucket at the default limit, where it runs dry within the first iteration, and at one
+ * whose refill of 100 million tokens a second outpaces any number of threads.
+ */
+@State(Scope.Benchmark)
+public class BucketState extends SharedBucketState {
+
+    @Param({"7200", "360000000000"})
+    public long limit;
+
+    @Override
+    protected long limit() {
+        return limit;
+    }
+}
@@ -0,0 +1,39 @@
+package org.example.leakybucket.benchmark;
+
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import java.time.Duration;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of a limit change: building the new configuration and replacing it on the shared bucket.
+ */
+public class ConfigurationReplacementBenchmark {
+
+    private static final Duration PERIOD = Duration.ofHours(1);
+
+    @State(Scope.Thread)
+    public static class Limits {
+        private long next = 7200L;
+
+        long next() {
+            // Alternate so every replacement really changes the stored configuration
+            next = next == 7200L ? 14400L : 7200L;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public BucketConfiguration createNewConfiguration(Limits limits) {
+        return LimitUpdaterService.createNewConfiguration(limits.next(), PERIOD);
+    }
+
+    @Benchmark
+    public void replaceConfiguration(BucketState state, Limits limits) {
+        state.bucket.replaceConfiguration(
+            LimitUpdaterService.createNewConfiguration(limits.next(), PERIOD), TokensInheritanceStrategy.AS_IS);
+    }
+}
@@ -0,0 +1,76 @@
+package org.example.leakybucket.benchmark;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.TimeMeter;
+import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.github.bucket4j.grid.jcache.Bucket4jJCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import org.example.leakybucket.bucket.BucketBackend;
+import org.example.leakybucket.bucket.LocalBucketBackend;
+import org.example.leakybucket.bucket.MeteredOptimization;
+import org.example.leakybucket.bucket.ProxyManagerBucketBackend;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The shared bucket, either in memory or behind the JCache entry-processor path. It starts full and
+ * holds a whole period's limit, unlike the production configuration whose burst capacity of a single
+ * token would leave every call waiting on the refill. The JCache stand-in is Caffeine's in-memory JCache provider, so the
+ * entry processor, its serialization and the proxy layer are measured without a Redis server.
+ * Subclasses are the {@code @State} classes and choose the limits to run with.
+ */
+public abstract class SharedBucketState {
+
+    private static final String CAFFEINE_JCACHE_PROVIDER =
+        "com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider";
+    private static final String CACHE_NAME = "bucket4j-benchmark-cache";
+    private static final String BUCKET_KEY = "sqs-global-rate-limit-key";
+
+    @Param({"local", "jcache"})
+    public String backend;
+
+    @Param({"PT1H"})
+    public String period;
+
+    public BucketConfiguration configuration;
+    public Bucket bucket;
+    private CacheManager cacheManager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        configuration = BucketConfiguration.builder()
+            .addLimit(bandwidth -> bandwidth.capacity(limit()).refillGreedy(limit(), Duration.parse(period))
+                .initialTokens(limit()))
+            .build();
+        bucket = backend().resolve(BUCKET_KEY, () -> configuration);
+    }
+
+    // Per app.bucket.period
+    protected abstract long limit();
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (cacheManager != null) {
+            cacheManager.close();
+        }
+    }
+
+    private BucketBackend backend() {
+        if (LocalBucketBackend.NAME.equals(backend)) {
+            return new LocalBucketBackend(TimeMeter.SYSTEM_NANOTIME);
+        }
+        cacheManager = Caching.getCachingProvider(CAFFEINE_JCACHE_PROVIDER).getCacheManager();
+        Cache<String, byte[]> cache = cacheManager.createCache(CACHE_NAME, new MutableConfiguration<String, byte[]>());
+        ProxyManager<String> proxyManager = Bucket4jJCache.entryProcessorBasedBuilder(cache).build();
+        return new ProxyManagerBucketBackend(backend, proxyManager,
+            new MeteredOptimization(backend, 1, null, new SimpleMeterRegistry()));
+    }
+}
@@ -0,0 +1,81 @@
+package org.example.leakybucket.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Token acquisition on the shared bucket under increasing contention. {@code tryConsume} is the
+ * non-blocking path used by leasing and the pipeline, {@code consume} the blocking path of the
+ * listener and the polling loop, {@code getAvailableTokens} the poll the manual loop runs first.
+ * {@code consume} only runs at the high limit, see {@link BlockingBucketState}.
+ */
+public class TokenAcquisitionBenchmark {
+
+    @Benchmark
+    @Threads(1)
+    public boolean tryConsume01Thread(BucketState state) {
+        return state.bucket.tryConsume(1L);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean tryConsume04Threads(BucketState state) {
+        return state.bucket.tryConsume(1L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean tryConsume16Threads(BucketState state) {
+        return state.bucket.tryConsume(1L);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean tryConsume64Threads(BucketState state) {
+        return state.bucket.tryConsume(1L);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void consume01Thread(BlockingBucketState state) throws InterruptedException {
+        state.bucket.asBlocking().consume(1L);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void consume04Threads(BlockingBucketState state) throws InterruptedException {
+        state.bucket.asBlocking().consume(1L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void consume16Threads(BlockingBucketState state) throws InterruptedException {
+        state.bucket.asBlocking().consume(1L);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void consume64Threads(BlockingBucketState state) throws InterruptedException {
+        state.bucket.asBlocking().consume(1L);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long getAvailableTokens01Thread(BucketState state) {
+        return state.bucket.getAvailableTokens();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long getAvailableTokens16Threads(BucketState state) {
+        return state.bucket.getAvailableTokens();
+    }
+
+    // What one iteration of the manual polling loop costs on the bucket side
+    @Benchmark
+    @Threads(1)
+    public long pollThenConsume01Thread(BucketState state) {
+        long available = state.bucket.getAvailableTokens();
+        return available > 0L ? state.bucket.tryConsumeAsMuchAsPossible(Math.min(available, 10L)) : 0L;
+    }
+}
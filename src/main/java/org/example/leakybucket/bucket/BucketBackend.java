@@ -0,0 +1,22 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Storage the buckets live in, selected with {@code app.bucket.backend}.
+ */
+public interface BucketBackend {
+
+    String name();
+
+    /**
+     * Resolves the bucket stored under the key, creating it with the supplied configuration when
+     * it does not exist yet.
+     */
+    Bucket resolve(String key, Supplier<BucketConfiguration> configuration);
+
+    Optional<BucketConfiguration> getConfiguration(String key);
+}
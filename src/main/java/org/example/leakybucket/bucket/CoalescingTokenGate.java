@@ -0,0 +1,290 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands out tokens of the shared bucket to other services. Requests are queued and settled once
+ * per window: all tokens they ask for are taken with a single call to the bucket and then granted
+ * in arrival order, so the number of Redis calls depends on the window rather than on the request
+ * rate. Releases are summed up and returned with a single call as well.
+ *
+ * <p>Every grant has an id, and only tokens of a grant that were not released yet can be given
+ * back, within {@code app.tokens.grant-ttl} of the grant. That keeps callers from returning more
+ * than they took, which would raise the budget of everyone sharing the bucket.
+ *
+ * <p>A request that can't be granted in its window is rejected right away when it is a try, and
+ * otherwise waits for the next windows until its timeout. Tokens already taken for a waiting
+ * request are held for it, and go back to the bucket once nobody is waiting. The gate never holds
+ * more tokens, taken or released, than the bucket's capacity: a waiting request can't drain the
+ * bucket the consumers depend on beyond that, requests for more are rejected at once, and held
+ * tokens always fit back into the bucket. Only what the bucket refilled in the meantime is cut
+ * off when they go back, which it could not have held either.
+ *
+ * <p>Grants are kept in memory by the instance that made them, so releases have to reach the same
+ * instance, e.g. with sticky sessions on the load balancer.
+ */
+@Component
+public class CoalescingTokenGate {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingTokenGate.class);
+
+    private final Bucket bucket;
+    private final LimitUpdaterService limitUpdaterService;
+    private final Queue<PendingAcquire> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingRelease = new AtomicLong();
+    private final Map<String, OutstandingGrant> grants = new ConcurrentHashMap<>();
+    private final AtomicInteger waitingGauge;
+    private final long grantTtlNanos;
+    private final ScheduledExecutorService flusher;
+
+    // Only changed by the flusher thread, releases read the held tokens to stay within capacity
+    private final Deque<PendingAcquire> waiting = new ArrayDeque<>();
+    private volatile long heldTokens;
+    private long nextGrantSweep;
+
+    // Metrics
+    private final Counter grantedCounter;
+    private final Counter rejectedCounter;
+    private final Counter timedOutCounter;
+    private final Counter bucketCallsCounter;
+    private final DistributionSummary coalescedSummary;
+
+    public CoalescingTokenGate(
+        Bucket rateLimitBucket,
+        LimitUpdaterService limitUpdaterService,
+        MeterRegistry meterRegistry,
+        @Value("${app.tokens.coalesce-window:PT0.01S}") String coalesceWindow,
+        @Value("${app.tokens.grant-ttl:PT1M}") String grantTtl) {
+        this.bucket = rateLimitBucket;
+        this.limitUpdaterService = limitUpdaterService;
+        this.grantTtlNanos = Duration.parse(grantTtl).toNanos();
+        this.nextGrantSweep = System.nanoTime() + grantTtlNanos;
+
+        this.grantedCounter = meterRegistry.counter(
+            "leakybucket_tokens_api_requests_total", "result", "granted");
+        this.rejectedCounter = meterRegistry.counter(
+            "leakybucket_tokens_api_requests_total", "result", "rejected");
+        this.timedOutCounter = meterRegistry.counter(
+            "leakybucket_tokens_api_requests_total", "result", "timeout");
+        this.bucketCallsCounter = meterRegistry.counter("leakybucket_tokens_api_bucket_calls_total");
+        this.coalescedSummary = DistributionSummary.builder("leakybucket_tokens_api_coalesced_requests")
+            .description("Requests settled by one call to the bucket")
+            .register(meterRegistry);
+        this.waitingGauge = meterRegistry.gauge("leakybucket_tokens_api_waiting", new AtomicInteger());
+        meterRegistry.gauge("leakybucket_tokens_api_outstanding_grants", grants, Map::size);
+
+        long windowNanos = Duration.parse(coalesceWindow).toNanos();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("token-gate-flusher-"));
+        this.flusher.scheduleWithFixedDelay(this::settle, windowNanos, windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Completes with the id of the grant once the tokens are granted, or empty if they could not be
+     * granted within the timeout. A zero timeout only tries the current window.
+     */
+    public CompletableFuture<Optional<String>> acquire(long tokens, Duration timeout) {
+        PendingAcquire pending = new PendingAcquire(tokens, System.nanoTime() + timeout.toNanos(), timeout.isZero());
+        incoming.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * Gives back up to {@code tokens} of a grant that were not used, as many as the gate can take
+     * back before the next window. The rest stays on the grant and can be released later.
+     *
+     * @return the tokens actually given back, possibly 0 when the gate holds a full bucket
+     * already, or empty for an unknown, expired or fully released grant
+     */
+    public OptionalLong release(String grantId, long tokens) {
+        long[] released = {-1L};
+        grants.computeIfPresent(grantId, (id, grant) -> {
+            if (System.nanoTime() - grant.expiresAt() >= 0) {
+                return null;
+            }
+            released[0] = takeBack(Math.min(tokens, grant.tokens()));
+            long left = grant.tokens() - released[0];
+            return left > 0 ? new OutstandingGrant(left, grant.expiresAt()) : null;
+        });
+        return released[0] < 0 ? OptionalLong.empty() : OptionalLong.of(released[0]);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdownNow();
+        // Whatever was taken for waiting requests goes back, the requests themselves fail
+        incoming.forEach(pending -> pending.future.complete(Optional.empty()));
+        waiting.forEach(pending -> pending.future.complete(Optional.empty()));
+        long unused = heldTokens + pendingRelease.getAndSet(0L);
+        if (unused > 0) {
+            bucket.addTokens(unused);
+        }
+    }
+
+    // Package-private so tests can settle windows themselves
+    void settle() {
+        try {
+            PendingAcquire next;
+            while ((next = incoming.poll()) != null) {
+                waiting.add(next);
+            }
+            long capacity = limitUpdaterService.capacity();
+            expireWaiting();
+            rejectOversized(capacity);
+            sweepExpiredGrants();
+
+            // Counted twice for a moment rather than not at all, releases stay within capacity
+            long released = pendingRelease.get();
+            heldTokens += released;
+            pendingRelease.addAndGet(-released);
+            if (!waiting.isEmpty()) {
+                long demand = 0L;
+                for (PendingAcquire pending : waiting) {
+                    demand += pending.tokens;
+                }
+                long needed = Math.min(demand, capacity) - heldTokens;
+                if (needed > 0) {
+                    heldTokens += bucket.tryConsumeAsMuchAsPossible(needed);
+                    bucketCallsCounter.increment();
+                    coalescedSummary.record(waiting.size());
+                }
+                grantInOrder();
+            }
+            if (waiting.isEmpty()) {
+                returnTokens(heldTokens);
+                heldTokens = 0L;
+            }
+        } catch (Exception e) {
+            // The requests stay queued until their timeout, the next window tries again
+            log.error("Error while settling token requests", e);
+        } finally {
+            waitingGauge.set(waiting.size());
+        }
+    }
+
+    // The first request that can't be granted holds back the ones behind it, except tries
+    private void grantInOrder() {
+        boolean blocked = false;
+        for (Iterator<PendingAcquire> it = waiting.iterator(); it.hasNext(); ) {
+            PendingAcquire pending = it.next();
+            if (!blocked && pending.tokens <= heldTokens) {
+                heldTokens -= pending.tokens;
+                it.remove();
+                complete(pending, true);
+            } else if (pending.tryOnly) {
+                it.remove();
+                complete(pending, false);
+            } else {
+                blocked = true;
+            }
+        }
+    }
+
+    // Granting them would mean holding more than the bucket holds, they could only time out
+    private void rejectOversized(long capacity) {
+        for (Iterator<PendingAcquire> it = waiting.iterator(); it.hasNext(); ) {
+            PendingAcquire pending = it.next();
+            if (pending.tokens > capacity) {
+                it.remove();
+                complete(pending, false);
+            }
+        }
+    }
+
+    // Reserves room for released tokens, so held and released tokens together stay within capacity
+    private long takeBack(long tokens) {
+        while (true) {
+            long pending = pendingRelease.get();
+            long accepted = Math.max(0L,
+                Math.min(tokens, limitUpdaterService.capacity() - heldTokens - pending));
+            if (accepted == 0L || pendingRelease.compareAndSet(pending, pending + accepted)) {
+                return accepted;
+            }
+        }
+    }
+
+    private void expireWaiting() {
+        long now = System.nanoTime();
+        for (Iterator<PendingAcquire> it = waiting.iterator(); it.hasNext(); ) {
+            PendingAcquire pending = it.next();
+            if (!pending.tryOnly && now - pending.deadline >= 0) {
+                it.remove();
+                timedOutCounter.increment();
+                pending.future.complete(Optional.empty());
+            }
+        }
+    }
+
+    // Releases check the expiry themselves, this only bounds the memory held by unreleased grants
+    private void sweepExpiredGrants() {
+        long now = System.nanoTime();
+        if (now - nextGrantSweep < 0) {
+            return;
+        }
+        grants.values().removeIf(grant -> now - grant.expiresAt() >= 0);
+        nextGrantSweep = now + grantTtlNanos;
+    }
+
+    private void complete(PendingAcquire pending, boolean granted) {
+        (granted ? grantedCounter : rejectedCounter).increment();
+        Optional<String> grant = granted ? Optional.of(newGrant(pending.tokens)) : Optional.empty();
+        // Completed off the flusher thread, so slow callbacks don't delay the next window
+        pending.future.completeAsync(() -> grant);
+    }
+
+    private String newGrant(long tokens) {
+        String grantId = UUID.randomUUID().toString();
+        grants.put(grantId, new OutstandingGrant(tokens, System.nanoTime() + grantTtlNanos));
+        return grantId;
+    }
+
+    private void returnTokens(long tokens) {
+        if (tokens > 0) {
+            bucket.addTokens(tokens);
+            bucketCallsCounter.increment();
+        }
+    }
+
+    private static final class PendingAcquire {
+        private final long tokens;
+        private final long deadline;
+        private final boolean tryOnly;
+        private final CompletableFuture<Optional<String>> future = new CompletableFuture<>();
+
+        private PendingAcquire(long tokens, long deadline, boolean tryOnly) {
+            this.tokens = tokens;
+            this.deadline = deadline;
+            this.tryOnly = tryOnly;
+        }
+    }
+
+    private record OutstandingGrant(long tokens, long expiresAt) {
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Every operation goes straight to the shared bucket, costing one round trip to Redis.
+ *
+ * <p>{@link #consumeAsync(long)} makes that round trip on the calling thread too: the bucket is
+ * the synchronous proxy, and the default JCache backend has no asynchronous one. Only the wait
+ * for the refill after the reservation is left to the scheduler.
+ */
+public class DirectTokenBucket implements TokenBucket {
+
+    private final Bucket bucket;
+    private final ScheduledExecutorService scheduler;
+    private final MeteredBucketListener bucketListener;
+
+    public DirectTokenBucket(Bucket bucket, ScheduledExecutorService scheduler,
+        MeteredBucketListener bucketListener) {
+        this.bucket = bucket;
+        this.scheduler = scheduler;
+        this.bucketListener = bucketListener;
+    }
+
+    @Override
+    public boolean tryConsume(long tokens) {
+        return bucket.tryConsume(tokens);
+    }
+
+    @Override
+    public long tryConsumeAsMuchAsPossible(long limit) {
+        return bucket.tryConsumeAsMuchAsPossible(limit);
+    }
+
+    @Override
+    public void consume(long tokens) throws InterruptedException {
+        bucket.asBlocking().consume(tokens);
+    }
+
+    @Override
+    public CompletableFuture<Void> consumeAsync(long tokens) {
+        return bucket.asScheduler().consume(tokens, scheduler);
+    }
+
+    @Override
+    public TokenReservation reserve(long tokens) throws InterruptedException {
+        return TokenReservation.take(this, bucketListener, tokens);
+    }
+
+    @Override
+    public long getAvailableTokens() {
+        return bucket.getAvailableTokens();
+    }
+
+    @Override
+    public void addTokens(long tokens) {
+        bucket.addTokens(tokens);
+        bucketListener.onRefunded(tokens);
+    }
+}
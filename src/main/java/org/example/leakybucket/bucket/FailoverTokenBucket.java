@@ -0,0 +1,283 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker in front of the Redis-backed bucket. Every call to it runs with a timeout; a call
+ * that fails or times out is served by an in-memory bucket instead, and after
+ * {@code failureThreshold} failures in a row the circuit opens and all calls go to the in-memory
+ * bucket for {@code openDuration}. Then a single probe goes to Redis: if it succeeds the circuit
+ * closes again, otherwise it stays open for another round.
+ *
+ * <p>The in-memory bucket refills at the last-known share of this instance ({@code fallbackLimit},
+ * per period), and follows it when the limit or the number of instances changes while degraded.
+ * Tokens taken from it are charged to the shared bucket on recovery, as far as the shared bucket
+ * has them, so the fleet does not get a second burst once Redis is back.
+ *
+ * <p>For blocking and async consumption only the reservation in Redis is subject to the timeout;
+ * waiting for the refill afterwards is not.
+ */
+public class FailoverTokenBucket implements TokenBucket {
+
+    private static final Logger log = LoggerFactory.getLogger(FailoverTokenBucket.class);
+
+    private enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private final TokenBucket primary;
+    private final ExecutorService redisCalls;
+    private final ScheduledExecutorService scheduler;
+    private final MeteredBucketListener bucketListener;
+    private final LongSupplier fallbackLimit;
+    private final Duration period;
+    private final long callTimeoutNanos;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final AtomicLong degradedConsumed = new AtomicLong();
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private volatile Bucket localBucket;
+    private volatile long localLimit;
+    // Failed probes reopen the circuit but do not end the degraded period
+    private long degradedSince;
+    private long degradedNanos;
+
+    // Metrics
+    private final Counter failoversCounter;
+    private final Counter timeoutsCounter;
+    private final Counter errorsCounter;
+    private final Counter chargedCounter;
+    private final Counter forgivenCounter;
+
+    public FailoverTokenBucket(
+        TokenBucket primary,
+        ExecutorService redisCalls,
+        ScheduledExecutorService scheduler,
+        MeteredBucketListener bucketListener,
+        LongSupplier fallbackLimit,
+        Duration period,
+        Duration callTimeout,
+        int failureThreshold,
+        Duration openDuration,
+        MeterRegistry meterRegistry) {
+        this.primary = primary;
+        this.redisCalls = redisCalls;
+        this.scheduler = scheduler;
+        this.bucketListener = bucketListener;
+        this.fallbackLimit = fallbackLimit;
+        this.period = period;
+        this.callTimeoutNanos = callTimeout.toNanos();
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationNanos = openDuration.toNanos();
+        this.localBucket = newLocalBucket();
+
+        this.failoversCounter = meterRegistry.counter("leakybucket_bucket_failovers_total");
+        this.timeoutsCounter = meterRegistry.counter(
+            "leakybucket_bucket_redis_call_failures_total", "reason", "timeout");
+        this.errorsCounter = meterRegistry.counter(
+            "leakybucket_bucket_redis_call_failures_total", "reason", "error");
+        this.chargedCounter = meterRegistry.counter(
+            "leakybucket_bucket_reconciled_tokens_total", "result", "charged");
+        this.forgivenCounter = meterRegistry.counter(
+            "leakybucket_bucket_reconciled_tokens_total", "result", "forgiven");
+        meterRegistry.gauge("leakybucket_bucket_failover_state", this, bucket -> bucket.state.ordinal());
+        FunctionCounter.builder("leakybucket_bucket_degraded_seconds_total", this,
+                bucket -> bucket.degradedNanos() / 1e9)
+            .description("Time spent serving tokens from the in-memory bucket")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public boolean tryConsume(long tokens) {
+        return call(() -> primary.tryConsume(tokens), () -> consumeLocally(tokens));
+    }
+
+    @Override
+    public long tryConsumeAsMuchAsPossible(long limit) {
+        return call(() -> primary.tryConsumeAsMuchAsPossible(limit), () -> {
+            long consumed = localBucket.tryConsumeAsMuchAsPossible(limit);
+            degradedConsumed.addAndGet(consumed);
+            return consumed;
+        });
+    }
+
+    @Override
+    public void consume(long tokens) throws InterruptedException {
+        try {
+            consumeAsync(tokens).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not consume " + tokens + " tokens", e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> consumeAsync(long tokens) {
+        // The call only covers the reservation, the returned future completes after the refill wait
+        return call(() -> primary.consumeAsync(tokens), () -> {
+            degradedConsumed.addAndGet(tokens);
+            return localBucket.asScheduler().consume(tokens, scheduler);
+        });
+    }
+
+    @Override
+    public TokenReservation reserve(long tokens) throws InterruptedException {
+        return TokenReservation.take(this, bucketListener, tokens);
+    }
+
+    @Override
+    public long getAvailableTokens() {
+        return call(primary::getAvailableTokens, localBucket::getAvailableTokens);
+    }
+
+    @Override
+    public void addTokens(long tokens) {
+        call(() -> {
+            primary.addTokens(tokens);
+            return null;
+        }, () -> {
+            localBucket.addTokens(tokens);
+            degradedConsumed.addAndGet(-tokens);
+            return null;
+        });
+    }
+
+    private <T> T call(Supplier<T> remote, Supplier<T> local) {
+        if (!allowRemoteCall()) {
+            followFallbackLimit();
+            return local.get();
+        }
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(remote, redisCalls);
+        try {
+            T result = future.get(callTimeoutNanos, TimeUnit.NANOSECONDS);
+            onSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            // The call may still complete and take tokens, which the reconciliation can't see
+            future.cancel(true);
+            timeoutsCounter.increment();
+            onFailure(e);
+        } catch (ExecutionException e) {
+            errorsCounter.increment();
+            onFailure(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new IllegalStateException("Interrupted while calling the shared bucket", e);
+        }
+        followFallbackLimit();
+        return local.get();
+    }
+
+    private boolean allowRemoteCall() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos) {
+            state = State.HALF_OPEN;
+        }
+        // A single probe at a time while half open
+        return state == State.HALF_OPEN && probing.compareAndSet(false, true);
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state != State.CLOSED) {
+            degradedNanos += System.nanoTime() - degradedSince;
+            state = State.CLOSED;
+            probing.set(false);
+            log.info("Shared bucket reachable again, leaving degraded mode");
+            redisCalls.execute(this::reconcile);
+        }
+    }
+
+    private synchronized void onFailure(Throwable cause) {
+        if (state == State.HALF_OPEN) {
+            openedAt = System.nanoTime();
+            state = State.OPEN;
+            probing.set(false);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state == State.CLOSED) {
+            localBucket = newLocalBucket();
+            openedAt = System.nanoTime();
+            degradedSince = openedAt;
+            state = State.OPEN;
+            failoversCounter.increment();
+            log.warn("Shared bucket failing ({}), serving tokens from memory at {} per {}",
+                cause == null ? "timeout" : cause.getMessage(), fallbackLimit.getAsLong(), period);
+        }
+    }
+
+    private void reconcile() {
+        long debt = degradedConsumed.getAndSet(0L);
+        if (debt <= 0) {
+            return;
+        }
+        try {
+            long charged = primary.tryConsumeAsMuchAsPossible(debt);
+            chargedCounter.increment(charged);
+            forgivenCounter.increment(debt - charged);
+            log.info("Charged {} of {} tokens used while degraded to the shared bucket", charged, debt);
+        } catch (Exception e) {
+            forgivenCounter.increment(debt);
+            log.warn("Could not reconcile tokens used while degraded: {}", e.getMessage());
+        }
+    }
+
+    private boolean consumeLocally(long tokens) {
+        boolean consumed = localBucket.tryConsume(tokens);
+        if (consumed) {
+            degradedConsumed.addAndGet(tokens);
+        }
+        return consumed;
+    }
+
+    // Checked on every local call, the supplier only reads values this instance already holds
+    private void followFallbackLimit() {
+        long limit = Math.max(1L, fallbackLimit.getAsLong());
+        if (limit == localLimit) {
+            return;
+        }
+        synchronized (this) {
+            if (limit != localLimit) {
+                localBucket.replaceConfiguration(LimitUpdaterService.createNewConfiguration(limit, period),
+                    TokensInheritanceStrategy.AS_IS);
+                localLimit = limit;
+                log.info("In-memory bucket now refills at {} per {}", limit, period);
+            }
+        }
+    }
+
+    private Bucket newLocalBucket() {
+        long limit = Math.max(1L, fallbackLimit.getAsLong());
+        localLimit = limit;
+        return Bucket.builder()
+            .addLimit(LimitUpdaterService.createNewConfiguration(limit, period).getBandwidths()[0])
+            .build();
+    }
+
+    private synchronized long degradedNanos() {
+        return state == State.CLOSED ? degradedNanos : degradedNanos + System.nanoTime() - degradedSince;
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.leakybucket.bucket;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Optional;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.redisson.api.RBucket;
+import org.redisson.api.RedissonClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Resolves one bucket per key (tenant, downstream target...) next to the global one. Limits are
+ * read from {@code app.bucket.capacity.<key>} in Redis, falling back to
+ * {@code app.bucket.tenant.default-capacity}. Resolved proxies are kept in a bounded local cache
+ * and refreshed in the background, so the hot path never waits on a limit lookup.
+ */
+@Component
+public class KeyedBucketRegistry {
+
+    public static final String BUCKET_KEY_PREFIX = "sqs-rate-limit-key:";
+    public static final String CAPACITY_KEY_PREFIX = LimitUpdaterService.CAPACITY_KEY + ".";
+    private static final Logger log = LoggerFactory.getLogger(KeyedBucketRegistry.class);
+
+    private final BucketBackend bucketBackend;
+    private final RedissonClient redissonClient;
+    private final long defaultCapacity;
+    private final Duration period;
+    private final LoadingCache<String, KeyedBucket> buckets;
+
+    public KeyedBucketRegistry(
+        BucketBackend bucketBackend,
+        RedissonClient redissonClient,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.tenant.default-capacity:${app.bucket.capacity}}") long defaultCapacity,
+        @Value("${app.bucket.period}") String period,
+        @Value("${app.bucket.tenant.cache-size:50000}") long cacheSize,
+        @Value("${app.bucket.tenant.expire-after-access:PT10M}") String expireAfterAccess,
+        @Value("${app.bucket.tenant.refresh-after-write:PT30S}") String refreshAfterWrite) {
+        this.bucketBackend = bucketBackend;
+        this.redissonClient = redissonClient;
+        this.defaultCapacity = defaultCapacity;
+        this.period = Duration.parse(period);
+
+        this.buckets = Caffeine.newBuilder()
+            .maximumSize(cacheSize)
+            .expireAfterAccess(Duration.parse(expireAfterAccess))
+            .refreshAfterWrite(Duration.parse(refreshAfterWrite))
+            .recordStats()
+            .build(new KeyedBucketLoader());
+        CaffeineCacheMetrics.monitor(meterRegistry, buckets, "leakybucket_keyed_buckets");
+    }
+
+    public Bucket resolve(String key) {
+        return buckets.get(key).bucket();
+    }
+
+    public void updateLimit(String key, int limit) {
+        RBucket<Integer> capacity = redissonClient.getBucket(CAPACITY_KEY_PREFIX + key);
+        capacity.set(limit);
+        // Other instances see the new limit on their next background refresh
+        buckets.refresh(key);
+    }
+
+    private long fetchLimitFromRedisOrDefault(String key) {
+        try {
+            RBucket<Integer> bucket = redissonClient.getBucket(CAPACITY_KEY_PREFIX + key);
+            Integer value = bucket.get();
+            if (value != null && value > 0) {
+                return value;
+            }
+        } catch (Exception e) {
+            log.debug("Could not read limit for {} from Redis: {}", key, e.getMessage());
+        }
+        return defaultCapacity;
+    }
+
+    private final class KeyedBucketLoader implements CacheLoader<String, KeyedBucket> {
+
+        @Override
+        public KeyedBucket load(String key) {
+            long limit = fetchLimitFromRedisOrDefault(key);
+            BucketConfiguration configuration = LimitUpdaterService.createNewConfiguration(limit, period);
+            String bucketKey = BUCKET_KEY_PREFIX + key;
+            Bucket bucket = bucketBackend.resolve(bucketKey, () -> configuration);
+
+            // The bucket may outlive the cache entry in Redis, with the limit that was current back then
+            Optional<BucketConfiguration> stored = bucketBackend.getConfiguration(bucketKey);
+            if (stored.isPresent() && !stored.get().equals(configuration)) {
+                bucket.replaceConfiguration(configuration, TokensInheritanceStrategy.AS_IS);
+            }
+            return new KeyedBucket(bucket, limit);
+        }
+
+        @Override
+        public KeyedBucket reload(String key, KeyedBucket current) {
+            long limit = fetchLimitFromRedisOrDefault(key);
+            if (limit == current.limit()) {
+                return current;
+            }
+            log.info("Bucket limit change for {}: {} -> {}", key, current.limit(), limit);
+            current.bucket().replaceConfiguration(
+                LimitUpdaterService.createNewConfiguration(limit, period), TokensInheritanceStrategy.AS_IS);
+            return new KeyedBucket(current.bucket(), limit);
+        }
+    }
+
+    private record KeyedBucket(Bucket bucket, long limit) {
+    }
+}
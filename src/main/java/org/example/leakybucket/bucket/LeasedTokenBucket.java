@@ -0,0 +1,221 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * Borrows batches of tokens from the shared bucket and hands them out from a local counter, so
+ * only lease renewals cost a Redis round trip.
+ *
+ * <p>Leased tokens are already consumed from the shared bucket, so the global rate holds; the
+ * maximum lease size bounds how far ahead of the shared refill a single node may run. Leftovers
+ * go back to the shared bucket when the lease expires or the application shuts down.
+ */
+public class LeasedTokenBucket implements TokenBucket {
+
+    private static final Logger log = LoggerFactory.getLogger(LeasedTokenBucket.class);
+    private static final double RATE_SMOOTHING = 0.5;
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final Bucket globalBucket;
+    private final ScheduledExecutorService scheduler;
+    private final MeteredBucketListener bucketListener;
+    private final long leaseDurationNanos;
+    private final long minLeaseSize;
+    private final long maxLeaseSize;
+
+    private final AtomicLong localTokens = new AtomicLong();
+    private final LongAdder consumedSinceLastSample = new LongAdder();
+    private final ReentrantLock leaseLock = new ReentrantLock();
+    private volatile long leaseExpiresAt;
+    private volatile double consumptionRatePerSecond;
+    private long lastSampleAt;
+
+    // Metrics
+    private final Counter leasesCounter;
+    private final Counter leasedTokensCounter;
+    private final Counter returnedTokensCounter;
+
+    public LeasedTokenBucket(
+        Bucket globalBucket,
+        ScheduledExecutorService scheduler,
+        MeteredBucketListener bucketListener,
+        Duration leaseDuration,
+        long minLeaseSize,
+        long maxLeaseSize,
+        MeterRegistry meterRegistry) {
+        if (minLeaseSize <= 0 || maxLeaseSize < minLeaseSize) {
+            throw new IllegalArgumentException(
+                "Lease sizes must satisfy 0 < min <= max, got min=" + minLeaseSize + ", max=" + maxLeaseSize);
+        }
+        this.globalBucket = globalBucket;
+        this.scheduler = scheduler;
+        this.bucketListener = bucketListener;
+        this.leaseDurationNanos = leaseDuration.toNanos();
+        this.minLeaseSize = minLeaseSize;
+        this.maxLeaseSize = maxLeaseSize;
+        this.leaseExpiresAt = System.nanoTime();
+        this.lastSampleAt = System.nanoTime();
+
+        this.leasesCounter = meterRegistry.counter("leakybucket_bucket_lease_total");
+        this.leasedTokensCounter = meterRegistry.counter(
+            "leakybucket_bucket_lease_tokens_total", "action", "leased");
+        this.returnedTokensCounter = meterRegistry.counter(
+            "leakybucket_bucket_lease_tokens_total", "action", "returned");
+        meterRegistry.gauge("leakybucket_bucket_lease_local_tokens", localTokens);
+    }
+
+    @Override
+    public boolean tryConsume(long tokens) {
+        if (tryConsumeLocally(tokens)) {
+            return true;
+        }
+        renewLease(tokens);
+        return tryConsumeLocally(tokens);
+    }
+
+    @Override
+    public long tryConsumeAsMuchAsPossible(long limit) {
+        long taken = takeLocally(limit);
+        if (taken < limit) {
+            renewLease(limit - taken);
+            taken += takeLocally(limit - taken);
+        }
+        return taken;
+    }
+
+    @Override
+    public void consume(long tokens) throws InterruptedException {
+        if (tryConsume(tokens)) {
+            return;
+        }
+        // Nothing left to lease right now, so wait on the shared bucket like the direct mode does
+        globalBucket.asBlocking().consume(tokens);
+        consumedSinceLastSample.add(tokens);
+    }
+
+    @Override
+    public CompletableFuture<Void> consumeAsync(long tokens) {
+        if (tryConsume(tokens)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return globalBucket.asScheduler().consume(tokens, scheduler)
+            .thenRun(() -> consumedSinceLastSample.add(tokens));
+    }
+
+    @Override
+    public TokenReservation reserve(long tokens) throws InterruptedException {
+        // Unused tokens go back to the lease, and from there to the shared bucket when it expires
+        return TokenReservation.take(this, bucketListener, tokens);
+    }
+
+    @Override
+    public long getAvailableTokens() {
+        return localTokens.get() + globalBucket.getAvailableTokens();
+    }
+
+    @Override
+    public void addTokens(long tokens) {
+        // Refunds stay in the lease and go back to the shared bucket together with the leftovers
+        localTokens.addAndGet(tokens);
+        bucketListener.onRefunded(tokens);
+    }
+
+    @Scheduled(fixedDelayString = "${app.bucket.lease.duration:PT1S}")
+    public void expireLease() {
+        sampleConsumptionRate();
+        if (System.nanoTime() - leaseExpiresAt >= 0) {
+            returnLeftovers();
+        }
+    }
+
+    @PreDestroy
+    public void returnLeftovers() {
+        leaseLock.lock();
+        try {
+            long leftovers = localTokens.getAndSet(0L);
+            if (leftovers > 0L) {
+                globalBucket.addTokens(leftovers);
+                returnedTokensCounter.increment(leftovers);
+                log.debug("Returned {} leased tokens to the shared bucket", leftovers);
+            }
+        } catch (Exception e) {
+            log.warn("Could not return leased tokens to the shared bucket: {}", e.getMessage());
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private boolean tryConsumeLocally(long tokens) {
+        long current;
+        do {
+            current = localTokens.get();
+            if (current < tokens) {
+                return false;
+            }
+        } while (!localTokens.compareAndSet(current, current - tokens));
+        consumedSinceLastSample.add(tokens);
+        return true;
+    }
+
+    private long takeLocally(long limit) {
+        long current;
+        long taken;
+        do {
+            current = localTokens.get();
+            taken = Math.min(current, limit);
+            if (taken <= 0L) {
+                return 0L;
+            }
+        } while (!localTokens.compareAndSet(current, current - taken));
+        consumedSinceLastSample.add(taken);
+        return taken;
+    }
+
+    private void renewLease(long demand) {
+        leaseLock.lock();
+        try {
+            // Another thread may have renewed the lease while this one was waiting for the lock
+            long missing = demand - localTokens.get();
+            if (missing <= 0L) {
+                return;
+            }
+            long granted = globalBucket.tryConsumeAsMuchAsPossible(Math.max(missing, nextLeaseSize()));
+            if (granted > 0L) {
+                localTokens.addAndGet(granted);
+                leaseExpiresAt = System.nanoTime() + leaseDurationNanos;
+                leasesCounter.increment();
+                leasedTokensCounter.increment(granted);
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private long nextLeaseSize() {
+        long expected = (long) Math.ceil(consumptionRatePerSecond * leaseDurationNanos / NANOS_PER_SECOND);
+        return Math.min(maxLeaseSize, Math.max(minLeaseSize, expected));
+    }
+
+    private void sampleConsumptionRate() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleAt;
+        if (elapsed <= 0L) {
+            return;
+        }
+        double observed = consumedSinceLastSample.sumThenReset() * NANOS_PER_SECOND / elapsed;
+        consumptionRatePerSecond = RATE_SMOOTHING * observed + (1 - RATE_SMOOTHING) * consumptionRatePerSecond;
+        lastSampleAt = now;
+    }
+}
@@ -0,0 +1,51 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.LocalBucket;
+import io.github.bucket4j.LocalBucketBuilder;
+import io.github.bucket4j.TimeMeter;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * In-memory buckets for single-node runs: no Redis call on the token path, and no limit shared
+ * with other instances.
+ */
+public class LocalBucketBackend implements BucketBackend {
+
+    public static final String NAME = "local";
+
+    private final TimeMeter timeMeter;
+    private final Map<String, LocalBucket> buckets = new ConcurrentHashMap<>();
+
+    public LocalBucketBackend(TimeMeter timeMeter) {
+        this.timeMeter = timeMeter;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public Bucket resolve(String key, Supplier<BucketConfiguration> configuration) {
+        return buckets.computeIfAbsent(key, ignored -> build(configuration.get()));
+    }
+
+    @Override
+    public Optional<BucketConfiguration> getConfiguration(String key) {
+        return Optional.ofNullable(buckets.get(key)).map(LocalBucket::getConfiguration);
+    }
+
+    private LocalBucket build(BucketConfiguration configuration) {
+        LocalBucketBuilder builder = Bucket.builder().withCustomTimePrecision(timeMeter);
+        for (Bandwidth bandwidth : configuration.getBandwidths()) {
+            builder.addLimit(bandwidth);
+        }
+        return builder.build();
+    }
+}
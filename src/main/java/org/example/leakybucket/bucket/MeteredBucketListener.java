@@ -0,0 +1,101 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.BucketListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+
+/**
+ * Publishes the events Bucket4j reports for the shared bucket. Refunds are not a bucket event, so
+ * the {@link TokenBucket} implementations report them through {@link #onRefunded(long)}.
+ */
+public class MeteredBucketListener implements BucketListener {
+
+    private final Counter consumedCounter;
+    private final Counter rejectedCounter;
+    private final Counter refundedCounter;
+    private final Counter reservedCounter;
+    private final Counter committedCounter;
+    private final Counter returnedCounter;
+    private final Counter parkedCounter;
+    private final Counter interruptedCounter;
+    private final Timer parkedTimer;
+    private final Timer delayedTimer;
+
+    public MeteredBucketListener(MeterRegistry meterRegistry) {
+        this.consumedCounter = meterRegistry.counter("leakybucket_bucket_tokens_total", "event", "consumed");
+        this.rejectedCounter = meterRegistry.counter("leakybucket_bucket_tokens_total", "event", "rejected");
+        this.refundedCounter = meterRegistry.counter("leakybucket_bucket_tokens_total", "event", "refunded");
+        this.reservedCounter = meterRegistry.counter(
+            "leakybucket_bucket_reservation_tokens_total", "action", "reserved");
+        this.committedCounter = meterRegistry.counter(
+            "leakybucket_bucket_reservation_tokens_total", "action", "committed");
+        this.returnedCounter = meterRegistry.counter(
+            "leakybucket_bucket_reservation_tokens_total", "action", "returned");
+        this.parkedCounter = meterRegistry.counter("leakybucket_bucket_waits_total", "event", "parked");
+        this.interruptedCounter = meterRegistry.counter("leakybucket_bucket_waits_total", "event", "interrupted");
+        this.parkedTimer = tokenWaitTimer(meterRegistry, "parked");
+        this.delayedTimer = tokenWaitTimer(meterRegistry, "delayed");
+    }
+
+    @Override
+    public void onConsumed(long tokens) {
+        consumedCounter.increment(tokens);
+    }
+
+    @Override
+    public void onRejected(long tokens) {
+        rejectedCounter.increment(tokens);
+    }
+
+    @Override
+    public void onParked(long nanos) {
+        parkedCounter.increment();
+        parkedTimer.record(Duration.ofNanos(nanos));
+    }
+
+    @Override
+    public void onInterrupted(InterruptedException e) {
+        interruptedCounter.increment();
+    }
+
+    @Override
+    public void onDelayed(long nanos) {
+        delayedTimer.record(Duration.ofNanos(nanos));
+    }
+
+    public void onRefunded(long tokens) {
+        refundedCounter.increment(tokens);
+    }
+
+    /**
+     * Tokens consumed from the bucket since start, net of refunds.
+     */
+    public double consumedTokens() {
+        return consumedCounter.count() - refundedCounter.count();
+    }
+
+    void onReserved(long tokens) {
+        reservedCounter.increment(tokens);
+    }
+
+    void onCommitted(long tokens) {
+        committedCounter.increment(tokens);
+    }
+
+    void onReturned(long tokens) {
+        returnedCounter.increment(tokens);
+    }
+
+    private static Timer tokenWaitTimer(MeterRegistry meterRegistry, String mode) {
+        // parked: a blocked thread, delayed: a scheduled completion of an async request
+        return Timer.builder("leakybucket_bucket_token_wait_seconds")
+            .description("Time a caller waited for the bucket to refill")
+            .tag("mode", mode)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+    }
+}
@@ -0,0 +1,133 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.distributed.proxy.AsyncCommandExecutor;
+import io.github.bucket4j.distributed.proxy.CommandExecutor;
+import io.github.bucket4j.distributed.proxy.optimization.Optimization;
+import io.github.bucket4j.distributed.proxy.optimization.OptimizationListener;
+import io.github.bucket4j.distributed.remote.CommandResult;
+import io.github.bucket4j.distributed.remote.RemoteCommand;
+import io.github.bucket4j.distributed.remote.commands.MultiCommand;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the requests a bucket proxy sends to its backend and the bucket commands they carry.
+ * When request batching is enabled, several concurrent commands travel in one request, which is
+ * what the commands-per-call gauge makes visible.
+ *
+ * <p>Requests are turned into Redis calls with a backend-specific factor: the JCache entry
+ * processor is a single call, the compare-and-swap integrations read the state and then write it
+ * back with a script, so at least two.
+ *
+ * <p>Request latency is timed per command type (the simple class name of the Bucket4j command, or
+ * {@code MultiCommand} for merged requests).
+ */
+public class MeteredOptimization implements Optimization {
+
+    private final Optimization delegate;
+    private final Counter requestsCounter;
+    private final Counter commandsCounter;
+    private final RequestTimers requestTimers;
+
+    public MeteredOptimization(String backend, int redisCallsPerRequest, Optimization delegate,
+        MeterRegistry meterRegistry) {
+        this(delegate,
+            meterRegistry.counter("leakybucket_bucket_remote_requests_total", "backend", backend),
+            meterRegistry.counter("leakybucket_bucket_commands_total", "backend", backend),
+            new RequestTimers(backend, meterRegistry));
+        meterRegistry.gauge("leakybucket_bucket_commands_per_redis_call",
+            Tags.of("backend", backend), this,
+            optimization -> optimization.commandsPerRedisCall(redisCallsPerRequest));
+    }
+
+    private MeteredOptimization(Optimization delegate, Counter requestsCounter, Counter commandsCounter,
+        RequestTimers requestTimers) {
+        this.delegate = delegate;
+        this.requestsCounter = requestsCounter;
+        this.commandsCounter = commandsCounter;
+        this.requestTimers = requestTimers;
+    }
+
+    @Override
+    public Optimization withListener(OptimizationListener listener) {
+        if (delegate == null) {
+            return this;
+        }
+        return new MeteredOptimization(delegate.withListener(listener), requestsCounter, commandsCounter,
+            requestTimers);
+    }
+
+    @Override
+    public CommandExecutor apply(CommandExecutor originalExecutor) {
+        // Metered below the delegate, so merged commands are seen as the single request they are sent as
+        CommandExecutor metered = new CommandExecutor() {
+            @Override
+            public <T> CommandResult<T> execute(RemoteCommand<T> command) {
+                record(command);
+                long start = System.nanoTime();
+                try {
+                    return originalExecutor.execute(command);
+                } finally {
+                    requestTimers.record(command, System.nanoTime() - start);
+                }
+            }
+        };
+        return delegate == null ? metered : delegate.apply(metered);
+    }
+
+    @Override
+    public AsyncCommandExecutor apply(AsyncCommandExecutor originalExecutor) {
+        AsyncCommandExecutor metered = new AsyncCommandExecutor() {
+            @Override
+            public <T> CompletableFuture<CommandResult<T>> executeAsync(RemoteCommand<T> command) {
+                record(command);
+                long start = System.nanoTime();
+                return originalExecutor.executeAsync(command)
+                    .whenComplete((result, error) -> requestTimers.record(command, System.nanoTime() - start));
+            }
+        };
+        return delegate == null ? metered : delegate.apply(metered);
+    }
+
+    private void record(RemoteCommand<?> command) {
+        requestsCounter.increment();
+        commandsCounter.increment(command instanceof MultiCommand multi ? multi.getCommands().size() : 1);
+    }
+
+    private double commandsPerRedisCall(int redisCallsPerRequest) {
+        double redisCalls = requestsCounter.count() * redisCallsPerRequest;
+        return redisCalls == 0 ? 0 : commandsCounter.count() / redisCalls;
+    }
+
+    private static final class RequestTimers {
+
+        private final String backend;
+        private final MeterRegistry meterRegistry;
+        private final Map<Class<?>, Timer> timers = new ConcurrentHashMap<>();
+
+        private RequestTimers(String backend, MeterRegistry meterRegistry) {
+            this.backend = backend;
+            this.meterRegistry = meterRegistry;
+        }
+
+        private void record(RemoteCommand<?> command, long nanos) {
+            timers.computeIfAbsent(command.getClass(), this::register).record(Duration.ofNanos(nanos));
+        }
+
+        private Timer register(Class<?> commandType) {
+            return Timer.builder("leakybucket_bucket_remote_request_duration_seconds")
+                .description("Latency of a request sent to the bucket backend")
+                .tags("backend", backend, "command", commandType.getSimpleName())
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100_000))
+                .maximumExpectedValue(Duration.ofSeconds(5))
+                .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.example.leakybucket.bucket;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.github.bucket4j.distributed.proxy.optimization.Optimization;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Buckets stored in Redis through one of the Bucket4j {@link ProxyManager} integrations. Every
+ * bucket it resolves reports its remote requests through the given {@link MeteredOptimization}.
+ */
+public class ProxyManagerBucketBackend implements BucketBackend {
+
+    private final String name;
+    private final ProxyManager<String> proxyManager;
+    private final Optimization optimization;
+
+    public ProxyManagerBucketBackend(String name, ProxyManager<String> proxyManager,
+        MeteredOptimization optimization) {
+        this.name = name;
+        this.proxyManager = proxyManager;
+        this.optimization = optimization;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Bucket resolve(String key, Supplier<BucketConfiguration> configuration) {
+        return proxyManager.builder()
+            .withOptimization(optimization)
+            .build(key, configuration);
+    }
+
+    @Override
+    public Optional<BucketConfiguration> getConfiguration(String key) {
+        return proxyManager.getProxyConfiguration(key);
+    }
+}
@@ -0,0 +1,33 @@
+package org.example.leakybucket.bucket;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Rate-limit tokens as seen by the SQS consumers. Implementations either talk to the shared
+ * distributed bucket on every call or hand out tokens borrowed from it ahead of time.
+ */
+public interface TokenBucket {
+
+    boolean tryConsume(long tokens);
+
+    long tryConsumeAsMuchAsPossible(long limit);
+
+    void consume(long tokens) throws InterruptedException;
+
+    /**
+     * Completes once the tokens are consumed. Waiting for the refill is done by a scheduler, so
+     * no thread is parked in the meantime; the call that reserves the tokens may still block on
+     * the shared bucket.
+     */
+    CompletableFuture<Void> consumeAsync(long tokens);
+
+    /**
+     * Takes up to {@code tokens}, waiting like {@link #consume(long)} only while the bucket is
+     * empty, and lets the caller give back the part it ends up not using.
+     */
+    TokenReservation reserve(long tokens) throws InterruptedException;
+
+    long getAvailableTokens();
+
+    void addTokens(long tokens);
+}
@@ -0,0 +1,69 @@
+package org.example.leakybucket.bucket;
+
+/**
+ * Tokens taken from a {@link TokenBucket} before it is known how many will be used, e.g. ahead of
+ * an SQS receive that may return fewer messages than requested. {@link #commit(long)} keeps the
+ * used part and returns the rest; closing an uncommitted reservation returns all of it, so a
+ * failed receive costs no tokens.
+ *
+ * <p>A reservation never takes more than the bucket holds, so never more than its capacity. When
+ * the returned tokens no longer fit because the bucket refilled in the meantime, the capacity drops
+ * only refill the bucket would have dropped anyway had they never been reserved, so returned tokens
+ * are never lost budget.
+ */
+public final class TokenReservation implements AutoCloseable {
+
+    private final TokenBucket tokenBucket;
+    private final MeteredBucketListener bucketListener;
+    private final long tokens;
+    private boolean settled;
+
+    TokenReservation(TokenBucket tokenBucket, MeteredBucketListener bucketListener, long tokens) {
+        this.tokenBucket = tokenBucket;
+        this.bucketListener = bucketListener;
+        this.tokens = tokens;
+        bucketListener.onReserved(tokens);
+    }
+
+    /**
+     * Takes as many of {@code tokens} as the bucket holds, waiting only when it is empty.
+     */
+    static TokenReservation take(TokenBucket tokenBucket, MeteredBucketListener bucketListener, long tokens)
+        throws InterruptedException {
+        long taken = tokenBucket.tryConsumeAsMuchAsPossible(tokens);
+        if (taken == 0L) {
+            tokenBucket.consume(1L);
+            taken = 1L;
+        }
+        return new TokenReservation(tokenBucket, bucketListener, taken);
+    }
+
+    /**
+     * Tokens held, which may be fewer than requested.
+     */
+    public long tokens() {
+        return tokens;
+    }
+
+    /**
+     * Keeps {@code used} tokens and gives the others back. Only the first call has an effect.
+     */
+    public void commit(long used) {
+        if (settled) {
+            return;
+        }
+        settled = true;
+        long committed = Math.max(0L, Math.min(tokens, used));
+        bucketListener.onCommitted(committed);
+        long unused = tokens - committed;
+        if (unused > 0) {
+            tokenBucket.addTokens(unused);
+            bucketListener.onReturned(unused);
+        }
+    }
+
+    @Override
+    public void close() {
+        commit(0L);
+    }
+}
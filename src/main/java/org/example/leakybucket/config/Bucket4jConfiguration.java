@@ -3,14 +3,34 @@ package org.example.leakybucket.config;
 import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.BandwidthBuilder;
 import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.TimeMeter;
 import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.github.bucket4j.distributed.proxy.optimization.Optimization;
+import io.github.bucket4j.distributed.proxy.optimization.Optimizations;
+import io.github.bucket4j.distributed.serialization.Mapper;
 import io.github.bucket4j.grid.jcache.Bucket4jJCache;
+import io.github.bucket4j.redis.lettuce.Bucket4jLettuce;
+import io.github.bucket4j.redis.redisson.Bucket4jRedisson;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.time.Duration;
 import javax.cache.CacheManager;
 import javax.cache.Caching;
+import org.example.leakybucket.bucket.BucketBackend;
+import org.example.leakybucket.bucket.LocalBucketBackend;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.example.leakybucket.bucket.MeteredOptimization;
+import org.example.leakybucket.bucket.ProxyManagerBucketBackend;
+import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.jcache.configuration.RedissonConfiguration;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -20,6 +40,13 @@ public class Bucket4jConfiguration {
     public static final long BUCKET_INITIAL_TOKENS = 0L;
     private static final String CACHE_NAME = "bucket4j-leaky-bucket-cache";
     private static final int MAX_BANDWIDTH_CAPACITY_SIMULTANEOUSLY = 1;
+    private static final String BACKEND_PROPERTY = "app.bucket.backend";
+    private static final String JCACHE = "jcache";
+    private static final String REDISSON = "redisson";
+    private static final String LETTUCE = "lettuce";
+    // Entry processor: one invoke per request. Compare-and-swap: read, then a conditional write script.
+    private static final int JCACHE_REDIS_CALLS_PER_REQUEST = 1;
+    private static final int CAS_REDIS_CALLS_PER_REQUEST = 2;
     private final RedissonClient redissonClient;
 
     public Bucket4jConfiguration(RedissonClient redissonClient) {
@@ -43,6 +70,12 @@ public class Bucket4jConfiguration {
     }
 
     @Bean
+    public MeteredBucketListener bucketListener(MeterRegistry meterRegistry) {
+        return new MeteredBucketListener(meterRegistry);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = JCACHE, matchIfMissing = true)
     public CacheManager cacheManager() {
         javax.cache.spi.CachingProvider provider = Caching.getCachingProvider();
         CacheManager cacheManager = provider.getCacheManager();
@@ -54,6 +87,7 @@ public class Bucket4jConfiguration {
     }
 
     @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = JCACHE, matchIfMissing = true)
     public ProxyManager<String> distributedProxyManager(CacheManager cacheManager) {
         javax.cache.Cache<?, ?> untypedCache = cacheManager.getCache(CACHE_NAME);
         @SuppressWarnings("unchecked")
@@ -61,4 +95,60 @@ public class Bucket4jConfiguration {
 
         return Bucket4jJCache.entryProcessorBasedBuilder(cache).build();
     }
+
+    @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = JCACHE, matchIfMissing = true)
+    public BucketBackend jcacheBucketBackend(ProxyManager<String> distributedProxyManager,
+        MeterRegistry meterRegistry, @Value("${app.bucket.batching:false}") boolean batching) {
+        return new ProxyManagerBucketBackend(JCACHE, distributedProxyManager,
+            meteredOptimization(JCACHE, JCACHE_REDIS_CALLS_PER_REQUEST, batching, meterRegistry));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = REDISSON)
+    public BucketBackend redissonBucketBackend(MeterRegistry meterRegistry,
+        @Value("${app.bucket.batching:false}") boolean batching) {
+        ProxyManager<String> proxyManager = Bucket4jRedisson
+            .casBasedBuilder(((Redisson) redissonClient).getCommandExecutor())
+            .keyMapper(Mapper.STRING)
+            .build();
+        return new ProxyManagerBucketBackend(REDISSON, proxyManager,
+            meteredOptimization(REDISSON, CAS_REDIS_CALLS_PER_REQUEST, batching, meterRegistry));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = LETTUCE)
+    public RedisClient bucketRedisClient(
+        @Value("${spring.data.redis.host}") String host,
+        @Value("${spring.data.redis.port}") int port) {
+        return RedisClient.create(RedisURI.create(host, port));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = LETTUCE)
+    public StatefulRedisConnection<String, byte[]> bucketRedisConnection(RedisClient bucketRedisClient) {
+        return bucketRedisClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = LETTUCE)
+    public BucketBackend lettuceBucketBackend(StatefulRedisConnection<String, byte[]> bucketRedisConnection,
+        MeterRegistry meterRegistry, @Value("${app.bucket.batching:false}") boolean batching) {
+        ProxyManager<String> proxyManager = Bucket4jLettuce.casBasedBuilder(bucketRedisConnection).build();
+        return new ProxyManagerBucketBackend(LETTUCE, proxyManager,
+            meteredOptimization(LETTUCE, CAS_REDIS_CALLS_PER_REQUEST, batching, meterRegistry));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = BACKEND_PROPERTY, havingValue = LocalBucketBackend.NAME)
+    public BucketBackend localBucketBackend() {
+        return new LocalBucketBackend(TimeMeter.SYSTEM_MILLISECONDS);
+    }
+
+    private static MeteredOptimization meteredOptimization(String backend, int redisCallsPerRequest,
+        boolean batching, MeterRegistry meterRegistry) {
+        // Batching sends the commands of concurrent callers on the same key as one request
+        Optimization delegate = batching ? Optimizations.batching() : null;
+        return new MeteredOptimization(backend, redisCallsPerRequest, delegate, meterRegistry);
+    }
 }
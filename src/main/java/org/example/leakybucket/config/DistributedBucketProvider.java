@@ -2,7 +2,13 @@ package org.example.leakybucket.config;
 
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.BucketConfiguration;
-import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import org.example.leakybucket.bucket.BucketBackend;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -10,23 +16,49 @@ import org.springframework.context.annotation.Configuration;
 public class DistributedBucketProvider {
 
     private static final String BUCKET_KEY = "sqs-global-rate-limit-key";
+    // Until the coordinator assigns a slice, a sharded instance may only take a single token per period
+    private static final long UNASSIGNED_SLICE = 1L;
 
-    private final ProxyManager<String> distributedProxyManager;
+    private final BucketBackend bucketBackend;
     private final BucketConfiguration sharedBucketConfiguration;
+    private final MeteredBucketListener bucketListener;
+    private final MeterRegistry meterRegistry;
 
-    public DistributedBucketProvider(ProxyManager<String> distributedProxyManager,
-        BucketConfiguration sharedBucketConfiguration) {
-        this.distributedProxyManager = distributedProxyManager;
+    public DistributedBucketProvider(BucketBackend bucketBackend,
+        BucketConfiguration sharedBucketConfiguration,
+        MeteredBucketListener bucketListener,
+        MeterRegistry meterRegistry) {
+        this.bucketBackend = bucketBackend;
         this.sharedBucketConfiguration = sharedBucketConfiguration;
+        this.bucketListener = bucketListener;
+        this.meterRegistry = meterRegistry;
     }
 
     @Bean
-    public Bucket rateLimitBucket() {
-        // The ProxyManager resolves the Bucket, using the provided configuration
-        // if the bucket key is not yet present in Redis.
-        return distributedProxyManager.builder().build(
-            BUCKET_KEY,
-            () -> sharedBucketConfiguration
-        );
+    public Bucket rateLimitBucket(
+        @Value("${app.bucket.sharding.enabled:false}") boolean sharded,
+        @Value("${app.instance-id:local}") String instanceId,
+        @Value("${app.bucket.period}") String period) {
+        // The backend resolves the Bucket, using the provided configuration
+        // if the bucket key is not yet present in its storage.
+        Bucket bucket = sharded
+            ? bucketBackend.resolve(BUCKET_KEY + ":" + instanceId,
+                () -> LimitUpdaterService.createNewConfiguration(UNASSIGNED_SLICE, Duration.parse(period)))
+            : bucketBackend.resolve(BUCKET_KEY, () -> sharedBucketConfiguration);
+        bucket = bucket.toListenable(bucketListener);
+
+        // Read on every scrape, so this costs one bucket request per scrape interval
+        Gauge.builder("leakybucket_bucket_available_tokens", bucket, DistributedBucketProvider::availableTokens)
+            .description("Tokens currently available in the shared bucket")
+            .register(meterRegistry);
+        return bucket;
+    }
+
+    private static double availableTokens(Bucket bucket) {
+        try {
+            return bucket.getAvailableTokens();
+        } catch (Exception e) {
+            return Double.NaN;
+        }
     }
-}
\ No newline at end of file
+}
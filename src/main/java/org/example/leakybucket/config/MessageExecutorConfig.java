@@ -0,0 +1,89 @@
+package org.example.leakybucket.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class MessageExecutorConfig {
+
+    public static final String VIRTUAL = "virtual";
+    private static final String PLATFORM = "platform";
+    private static final int VIRTUAL_THREADS_MIN_JAVA = 21;
+    private static final Logger log = LoggerFactory.getLogger(MessageExecutorConfig.class);
+
+    @Bean
+    public TaskExecutor messageExecutor(
+        MeterRegistry meterRegistry,
+        @Value("${app.sqs.manual.executor:platform}") String executorType,
+        @Value("${app.sqs.manual.core-pool-size:10}") int corePoolSize,
+        @Value("${app.sqs.manual.max-pool-size:20}") int maxPoolSize,
+        @Value("${app.sqs.manual.queue-capacity:100}") int queueCapacity
+    ) {
+        if (VIRTUAL.equalsIgnoreCase(executorType)) {
+            // One virtual thread per message; blocking on SQS futures unmounts it from its carrier.
+            // Requires a JDK 21 runtime (build with -PjavaVersion=21).
+            if (Runtime.version().feature() < VIRTUAL_THREADS_MIN_JAVA) {
+                throw new IllegalStateException("app.sqs.manual.executor=virtual needs Java "
+                    + VIRTUAL_THREADS_MIN_JAVA + ", running on " + Runtime.version());
+            }
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("leaky-virtual-");
+            executor.setVirtualThreads(true);
+            executor.setTaskDecorator(inFlightTracking(meterRegistry, VIRTUAL));
+            log.info("Processing messages on virtual threads");
+            return executor;
+        }
+
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        // Bounded as a safety net, the ConcurrencyLimiter keeps dispatched messages below this
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("leaky-thread-");
+        executor.setTaskDecorator(inFlightTracking(meterRegistry, PLATFORM));
+        return executor;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "app.sqs.manual.executor", havingValue = VIRTUAL)
+    public VirtualThreadPinningMonitor virtualThreadPinningMonitor(
+        MeterRegistry meterRegistry,
+        @Value("${app.sqs.manual.pinning-threshold:PT0.02S}") String pinningThreshold
+    ) {
+        return new VirtualThreadPinningMonitor(meterRegistry, Duration.parse(pinningThreshold));
+    }
+
+    private TaskDecorator inFlightTracking(MeterRegistry meterRegistry, String executorType) {
+        AtomicInteger inFlight = meterRegistry.gauge(
+            "leakybucket_executor_in_flight", Tags.of("executor", executorType), new AtomicInteger());
+        Timer taskTimer = Timer.builder("leakybucket_executor_task_duration_seconds")
+            .description("Time a message spends on the processing executor, including SQS calls")
+            .tag("executor", executorType)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        return task -> {
+            inFlight.incrementAndGet();
+            return () -> {
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    taskTimer.record(Duration.ofNanos(System.nanoTime() - start));
+                    inFlight.decrementAndGet();
+                }
+            };
+        };
+    }
+}
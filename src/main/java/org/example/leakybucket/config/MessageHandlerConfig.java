@@ -0,0 +1,36 @@
+package org.example.leakybucket.config;
+
+import java.time.Duration;
+import org.example.leakybucket.sqs.BatchMessageHandler;
+import org.example.leakybucket.sqs.MessageHandler;
+import org.example.leakybucket.sqs.SimulatedMessageHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * The simulator is only registered when the application provides no handler of its own. A
+ * {@link MessageHandler} without a bulk variant handles batches one message at a time.
+ *
+ * <p>An auto-configuration, listed in {@code META-INF/spring}, so the conditions are evaluated
+ * after the application's own beans are registered; component scanning skips it.
+ */
+@AutoConfiguration
+public class MessageHandlerConfig {
+
+    @Bean
+    @ConditionalOnMissingBean(MessageHandler.class)
+    public SimulatedMessageHandler simulatedMessageHandler(
+        @Value("${app.sqs.handler.simulated.latency:PT0.25S}") String latency,
+        @Value("${app.sqs.handler.simulated.per-item-latency:PT0.01S}") String perItemLatency
+    ) {
+        return new SimulatedMessageHandler(Duration.parse(latency), Duration.parse(perItemLatency));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(BatchMessageHandler.class)
+    public BatchMessageHandler batchMessageHandler(MessageHandler messageHandler) {
+        return BatchMessageHandler.perMessage(messageHandler);
+    }
+}
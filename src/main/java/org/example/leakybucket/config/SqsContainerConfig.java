@@ -1,6 +1,7 @@
 package org.example.leakybucket.config;
 
 import io.awspring.cloud.sqs.config.SqsMessageListenerContainerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
@@ -8,13 +9,17 @@ import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 @Configuration
 public class SqsContainerConfig {
 
-    private static final int MAX_MESSAGES_PER_POLL = 1;
-    private static final int MAX_CONCURRENT_MESSAGES = 1;
+    // SQS never returns more than 10 messages per receive
+    private static final int MAX_MESSAGES_PER_POLL = 10;
 
     private final SqsAsyncClient sqsAsyncClient;
+    private final int maxConcurrentMessages;
 
-    public SqsContainerConfig(SqsAsyncClient sqsAsyncClient) {
+    public SqsContainerConfig(
+        SqsAsyncClient sqsAsyncClient,
+        @Value("${app.sqs.max-concurrent-messages:1}") int maxConcurrentMessages) {
         this.sqsAsyncClient = sqsAsyncClient;
+        this.maxConcurrentMessages = maxConcurrentMessages;
     }
 
     @Bean
@@ -22,8 +27,8 @@ public class SqsContainerConfig {
 
         return SqsMessageListenerContainerFactory.builder()
             .configure(options -> options
-                .maxMessagesPerPoll(MAX_MESSAGES_PER_POLL)
-                .maxConcurrentMessages(MAX_CONCURRENT_MESSAGES)
+                .maxMessagesPerPoll(Math.min(MAX_MESSAGES_PER_POLL, maxConcurrentMessages))
+                .maxConcurrentMessages(maxConcurrentMessages)
             )
             .sqsAsyncClient(this.sqsAsyncClient)
             .build();
@@ -0,0 +1,86 @@
+package org.example.leakybucket.config;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.example.leakybucket.bucket.DirectTokenBucket;
+import org.example.leakybucket.bucket.FailoverTokenBucket;
+import org.example.leakybucket.bucket.LeasedTokenBucket;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.example.leakybucket.service.InstanceRegistry;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+@Configuration
+public class TokenBucketConfiguration {
+
+    private static final int BUCKET_SCHEDULER_THREADS = 1;
+
+    // Only used to complete async token requests once the refill delay has passed. Not a bean: a
+    // ScheduledExecutorService bean would make Boot drop its own scheduler and run every
+    // @Scheduled method on this thread.
+    private final ScheduledExecutorService bucketScheduler = Executors.newScheduledThreadPool(
+        BUCKET_SCHEDULER_THREADS, new CustomizableThreadFactory("bucket-scheduler-"));
+
+    @PreDestroy
+    public void shutdownBucketScheduler() {
+        bucketScheduler.shutdownNow();
+    }
+
+    @Bean
+    public TokenBucket tokenBucket(
+        Bucket rateLimitBucket,
+        MeteredBucketListener bucketListener,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.lease.enabled:false}") boolean leaseEnabled,
+        @Value("${app.bucket.lease.duration:PT1S}") String leaseDuration,
+        @Value("${app.bucket.lease.min-size:1}") long minLeaseSize,
+        @Value("${app.bucket.lease.max-size:20}") long maxLeaseSize
+    ) {
+        if (!leaseEnabled) {
+            return new DirectTokenBucket(rateLimitBucket, bucketScheduler, bucketListener);
+        }
+        return new LeasedTokenBucket(rateLimitBucket, bucketScheduler, bucketListener,
+            Duration.parse(leaseDuration), minLeaseSize, maxLeaseSize, meterRegistry);
+    }
+
+    // Runs the calls to Redis so a slow one can be abandoned after the failover timeout
+    @Bean(destroyMethod = "shutdownNow")
+    @ConditionalOnProperty(name = "app.bucket.failover.enabled", havingValue = "true")
+    public ExecutorService bucketCallExecutor() {
+        return Executors.newCachedThreadPool(new CustomizableThreadFactory("bucket-redis-"));
+    }
+
+    // Wraps the bean above, which stays registered so its own lifecycle callbacks still run
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "app.bucket.failover.enabled", havingValue = "true")
+    public TokenBucket failoverTokenBucket(
+        @Qualifier("tokenBucket") TokenBucket tokenBucket,
+        ExecutorService bucketCallExecutor,
+        MeteredBucketListener bucketListener,
+        LimitUpdaterService limitUpdaterService,
+        InstanceRegistry instanceRegistry,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.period:PT1H}") String period,
+        @Value("${app.bucket.failover.call-timeout:PT0.05S}") String callTimeout,
+        @Value("${app.bucket.failover.failure-threshold:3}") int failureThreshold,
+        @Value("${app.bucket.failover.open-duration:PT5S}") String openDuration
+    ) {
+        return new FailoverTokenBucket(tokenBucket, bucketCallExecutor, bucketScheduler, bucketListener,
+            () -> limitUpdaterService.appliedLimit() / instanceRegistry.lastKnownInstanceCount(),
+            Duration.parse(period), Duration.parse(callTimeout), failureThreshold,
+            Duration.parse(openDuration), meterRegistry);
+    }
+}
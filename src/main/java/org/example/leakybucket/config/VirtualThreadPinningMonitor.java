@@ -0,0 +1,39 @@
+package org.example.leakybucket.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Streams the JFR {@code jdk.VirtualThreadPinned} event into Micrometer, so carrier pinning shows
+ * up next to the executor metrics. Only created with {@code app.sqs.manual.executor=virtual}, which
+ * refuses to start on a runtime older than JDK 21.
+ */
+public class VirtualThreadPinningMonitor implements AutoCloseable {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private final RecordingStream recordingStream;
+
+    public VirtualThreadPinningMonitor(MeterRegistry meterRegistry, Duration threshold) {
+        Counter pinnedCounter = meterRegistry.counter("leakybucket_virtual_thread_pinned_total");
+        Timer pinnedTimer = Timer.builder("leakybucket_virtual_thread_pinned_duration_seconds")
+            .description("Time a virtual thread kept its carrier pinned while blocked")
+            .register(meterRegistry);
+
+        this.recordingStream = new RecordingStream();
+        this.recordingStream.enable(PINNED_EVENT).withThreshold(threshold);
+        this.recordingStream.onEvent(PINNED_EVENT, event -> {
+            pinnedCounter.increment();
+            pinnedTimer.record(event.getDuration());
+        });
+        this.recordingStream.startAsync();
+    }
+
+    @Override
+    public void close() {
+        recordingStream.close();
+    }
+}
@@ -0,0 +1,207 @@
+package org.example.leakybucket.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.redisson.api.RedissonClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Closed-loop control of the shared limit (AIMD). Every interval the latency percentile of the
+ * downstream handler and the error rate are computed over the messages processed since the last
+ * interval. While both stay under their thresholds the limit grows by a fixed step, up to the
+ * operator limit; when either is crossed it is cut by a factor.
+ *
+ * <p>Both come from the handler timer ({@code app.bucket.adaptive.latency-timer}), which every
+ * consumer mode records once per message handed to the handler, failed calls included. The error
+ * rate is the share of those calls tagged {@code outcome=error}; failures before the handler runs,
+ * such as an interrupted token wait, say nothing about the downstream and are not counted. A timer
+ * configured in its place without the {@code outcome} tag only drives the limit on latency.
+ *
+ * <p>All instances call the same downstream, so one of them drives the limit for the whole fleet,
+ * using its own measurements as the sample. The driving instance holds a lease in Redis that the
+ * others take over when it stops renewing it.
+ */
+@Service
+@ConditionalOnProperty(name = "app.bucket.adaptive.enabled", havingValue = "true")
+public class AdaptiveLimitController {
+
+    public static final String LEADER_KEY = "app.bucket.adaptive.leader";
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveLimitController.class);
+    private static final String OUTCOME_TAG = "outcome";
+    private static final String ERROR_OUTCOME = "error";
+    private static final int LEASE_INTERVALS = 3;
+
+    private final LimitUpdaterService limitUpdaterService;
+    private final MeterRegistry meterRegistry;
+    private final LeaderLease leaderLease;
+    private final String latencyTimer;
+    private final double latencyPercentile;
+    private final double latencyThresholdSeconds;
+    private final double errorRateThreshold;
+    private final int increaseStep;
+    private final double decreaseFactor;
+    private final int minLimit;
+    private final int minSamples;
+
+    private volatile long targetLimit;
+    private volatile boolean leader;
+    private volatile double observedLatencySeconds;
+    private volatile double observedErrorRate;
+    private long lastOperatorLimit;
+    private TreeMap<Double, Double> lastLatencyBuckets = new TreeMap<>();
+    private long lastProcessed;
+    private long lastErrors;
+
+    // Metrics
+    private final Counter increaseCounter;
+    private final Counter decreaseCounter;
+    private final Counter holdCounter;
+
+    public AdaptiveLimitController(
+        LimitUpdaterService limitUpdaterService,
+        RedissonClient redissonClient,
+        MeterRegistry meterRegistry,
+        @Value("${app.instance-id:local}") String instanceId,
+        @Value("${app.bucket.adaptive.interval:PT5S}") String interval,
+        @Value("${app.bucket.adaptive.latency-timer:leakybucket_sqs_handler_duration_seconds}") String latencyTimer,
+        @Value("${app.bucket.adaptive.latency-percentile:0.95}") double latencyPercentile,
+        @Value("${app.bucket.adaptive.latency-threshold:PT0.5S}") String latencyThreshold,
+        @Value("${app.bucket.adaptive.error-rate-threshold:0.05}") double errorRateThreshold,
+        @Value("${app.bucket.adaptive.increase-step:360}") int increaseStep,
+        @Value("${app.bucket.adaptive.decrease-factor:0.7}") double decreaseFactor,
+        @Value("${app.bucket.adaptive.min-limit:60}") int minLimit,
+        @Value("${app.bucket.adaptive.min-samples:5}") int minSamples) {
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("app.bucket.adaptive.decrease-factor must be between 0 and 1");
+        }
+        this.limitUpdaterService = limitUpdaterService;
+        this.meterRegistry = meterRegistry;
+        this.leaderLease = new LeaderLease(redissonClient, LEADER_KEY, instanceId,
+            Duration.parse(interval).multipliedBy(LEASE_INTERVALS));
+        this.latencyTimer = latencyTimer;
+        this.latencyPercentile = latencyPercentile;
+        this.latencyThresholdSeconds = Duration.parse(latencyThreshold).toNanos() / 1e9;
+        this.errorRateThreshold = errorRateThreshold;
+        this.increaseStep = increaseStep;
+        this.decreaseFactor = decreaseFactor;
+        this.minLimit = minLimit;
+        this.minSamples = minSamples;
+        this.targetLimit = limitUpdaterService.appliedLimit();
+        this.lastOperatorLimit = limitUpdaterService.operatorLimit();
+
+        this.increaseCounter = meterRegistry.counter(
+            "leakybucket_adaptive_decisions_total", "decision", "increase");
+        this.decreaseCounter = meterRegistry.counter(
+            "leakybucket_adaptive_decisions_total", "decision", "decrease");
+        this.holdCounter = meterRegistry.counter(
+            "leakybucket_adaptive_decisions_total", "decision", "hold");
+        meterRegistry.gauge("leakybucket_adaptive_target_limit", this, controller -> controller.targetLimit);
+        meterRegistry.gauge("leakybucket_adaptive_leader", this, controller -> controller.leader ? 1 : 0);
+        meterRegistry.gauge("leakybucket_adaptive_observed_latency_seconds", this,
+            controller -> controller.observedLatencySeconds);
+        meterRegistry.gauge("leakybucket_adaptive_observed_error_rate", this,
+            controller -> controller.observedErrorRate);
+    }
+
+    @Scheduled(fixedDelayString = "${app.bucket.adaptive.interval:PT5S}")
+    public synchronized void adjust() {
+        // Measured on every instance so a new leader starts from a fresh interval
+        TreeMap<Double, Double> latencyBuckets = latencyBuckets();
+        long processed = processedCount();
+        long errors = errorCount();
+        long processedInInterval = processed - lastProcessed;
+        long errorsInInterval = errors - lastErrors;
+        double latency = percentile(difference(latencyBuckets, lastLatencyBuckets), processedInInterval);
+        lastLatencyBuckets = latencyBuckets;
+        lastProcessed = processed;
+        lastErrors = errors;
+
+        leader = leaderLease.acquireOrRenew();
+        long operatorLimit = limitUpdaterService.operatorLimit();
+        if (!leader || operatorLimit != lastOperatorLimit) {
+            // Follow the applied limit, an operator change restarts the search from the new limit
+            targetLimit = limitUpdaterService.appliedLimit();
+            lastOperatorLimit = operatorLimit;
+            return;
+        }
+
+        // Failed calls are timed too, so the errors are a subset of the samples
+        observedLatencySeconds = latency;
+        observedErrorRate = processedInInterval == 0 ? 0 : (double) errorsInInterval / processedInInterval;
+        if (processedInInterval < minSamples) {
+            holdCounter.increment();
+        } else if (latency > latencyThresholdSeconds || observedErrorRate > errorRateThreshold) {
+            targetLimit = Math.max(minLimit, (long) (targetLimit * decreaseFactor));
+            decreaseCounter.increment();
+            log.info("Downstream degraded (p{} latency {}s, error rate {}), cutting limit to {}",
+                latencyPercentile * 100, latency, observedErrorRate, targetLimit);
+        } else if (targetLimit < operatorLimit) {
+            targetLimit = targetLimit + increaseStep;
+            increaseCounter.increment();
+        } else {
+            holdCounter.increment();
+        }
+
+        targetLimit = Math.min(targetLimit, operatorLimit);
+        limitUpdaterService.applyEffectiveLimit(Math.toIntExact(targetLimit));
+    }
+
+    // Upper bound in seconds -> cumulative count, summed over all timers of that name
+    private TreeMap<Double, Double> latencyBuckets() {
+        TreeMap<Double, Double> buckets = new TreeMap<>();
+        for (Timer timer : meterRegistry.find(latencyTimer).timers()) {
+            for (CountAtBucket bucket : timer.takeSnapshot().histogramCounts()) {
+                buckets.merge(bucket.bucket(TimeUnit.SECONDS), bucket.count(), Double::sum);
+            }
+        }
+        return buckets;
+    }
+
+    private long processedCount() {
+        Collection<Timer> timers = meterRegistry.find(latencyTimer).timers();
+        return timers.stream().mapToLong(Timer::count).sum();
+    }
+
+    private long errorCount() {
+        return meterRegistry.find(latencyTimer).tag(OUTCOME_TAG, ERROR_OUTCOME).timers().stream()
+            .mapToLong(Timer::count)
+            .sum();
+    }
+
+    private static TreeMap<Double, Double> difference(TreeMap<Double, Double> current,
+        TreeMap<Double, Double> previous) {
+        TreeMap<Double, Double> difference = new TreeMap<>();
+        current.forEach((bound, count) -> difference.put(bound, count - previous.getOrDefault(bound, 0d)));
+        return difference;
+    }
+
+    /**
+     * Upper bound of the first bucket holding the percentile. The Prometheus registry keeps
+     * cumulative counts over the lifetime of the timer, so the difference of two snapshots is the
+     * histogram of the interval between them.
+     */
+    private double percentile(TreeMap<Double, Double> buckets, long total) {
+        if (total == 0) {
+            return 0;
+        }
+        double rank = latencyPercentile * total;
+        for (var bucket : buckets.entrySet()) {
+            if (bucket.getValue() >= rank) {
+                return bucket.getKey();
+            }
+        }
+        // Beyond the largest bucket
+        return Double.POSITIVE_INFINITY;
+    }
+}
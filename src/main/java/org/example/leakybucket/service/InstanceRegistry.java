@@ -0,0 +1,93 @@
+package org.example.leakybucket.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks the live instances through a heartbeat: each instance stores the time of its last beat
+ * as its score in a sorted set, and instances that have not beaten within the ttl are dropped.
+ */
+@Component
+public class InstanceRegistry {
+
+    public static final String INSTANCES_KEY = "app.bucket.instances";
+    private static final Logger log = LoggerFactory.getLogger(InstanceRegistry.class);
+
+    private final RedissonClient redissonClient;
+    private final String instanceId;
+    private final long ttlMillis;
+
+    private volatile int lastKnownInstanceCount = 1;
+
+    public InstanceRegistry(
+        RedissonClient redissonClient,
+        MeterRegistry meterRegistry,
+        @Value("${app.instance-id:local}") String instanceId,
+        @Value("${app.bucket.instances.ttl:PT15S}") String ttl) {
+        this.redissonClient = redissonClient;
+        this.instanceId = instanceId;
+        this.ttlMillis = Duration.parse(ttl).toMillis();
+        meterRegistry.gauge("leakybucket_instances_live", this, InstanceRegistry::lastKnownInstanceCount);
+    }
+
+    public String instanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Instance count as of the last successful heartbeat, at least 1.
+     */
+    public int lastKnownInstanceCount() {
+        return lastKnownInstanceCount;
+    }
+
+    @Scheduled(fixedDelayString = "${app.bucket.instances.heartbeat-interval:PT5S}")
+    public void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            RScoredSortedSet<String> instances = instances();
+            instances.add(now, instanceId);
+            instances.removeRangeByScore(0, true, now - ttlMillis, false);
+            lastKnownInstanceCount = Math.max(1, instances.size());
+        } catch (Exception e) {
+            log.warn("Could not send heartbeat for {}: {}", instanceId, e.getMessage());
+        }
+    }
+
+    /**
+     * Instances whose last heartbeat is within the ttl, including this one.
+     */
+    public List<String> liveInstances() {
+        long now = System.currentTimeMillis();
+        List<String> live = new ArrayList<>(
+            instances().valueRange(now - ttlMillis, true, Double.POSITIVE_INFINITY, true));
+        if (!live.contains(instanceId)) {
+            live.add(instanceId);
+        }
+        return live;
+    }
+
+    @PreDestroy
+    public void deregister() {
+        try {
+            instances().remove(instanceId);
+        } catch (Exception e) {
+            log.warn("Could not deregister {}: {}", instanceId, e.getMessage());
+        }
+    }
+
+    private RScoredSortedSet<String> instances() {
+        return redissonClient.getScoredSortedSet(INSTANCES_KEY, StringCodec.INSTANCE);
+    }
+}
@@ -0,0 +1,60 @@
+package org.example.leakybucket.service;
+
+import java.time.Duration;
+import java.util.List;
+import org.redisson.api.RBucket;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lease in Redis that makes one instance the leader for a task. The holder renews it on every run
+ * of the task; when it stops doing so, another instance takes it over once it expires.
+ */
+public class LeaderLease {
+
+    private static final Logger log = LoggerFactory.getLogger(LeaderLease.class);
+    // Renews only while the lease is still ours; a separate GET and PEXPIRE could extend the lease
+    // of an instance that took it over in between
+    private static final String RENEW_IF_HELD = """
+        if redis.call('get', KEYS[1]) == ARGV[1] then
+            return redis.call('pexpire', KEYS[1], ARGV[2])
+        end
+        return 0
+        """;
+
+    private final RedissonClient redissonClient;
+    private final String key;
+    private final String instanceId;
+    private final Duration duration;
+
+    public LeaderLease(RedissonClient redissonClient, String key, String instanceId, Duration duration) {
+        this.redissonClient = redissonClient;
+        this.key = key;
+        this.instanceId = instanceId;
+        this.duration = duration;
+    }
+
+    /**
+     * Takes the lease if it is free, renews it if this instance holds it.
+     *
+     * @return whether this instance holds the lease
+     */
+    public boolean acquireOrRenew() {
+        try {
+            RBucket<String> lease = redissonClient.getBucket(key, StringCodec.INSTANCE);
+            if (lease.setIfAbsent(instanceId, duration)) {
+                log.info("Instance {} took the {} lease", instanceId, key);
+                return true;
+            }
+            return redissonClient.getScript(StringCodec.INSTANCE).eval(key, RScript.Mode.READ_WRITE,
+                RENEW_IF_HELD, RScript.ReturnType.BOOLEAN, List.of(key),
+                instanceId, String.valueOf(duration.toMillis()));
+        } catch (Exception e) {
+            log.warn("Could not renew the {} lease: {}", key, e.getMessage());
+            return false;
+        }
+    }
+}
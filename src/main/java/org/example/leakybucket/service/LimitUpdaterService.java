@@ -5,9 +5,17 @@ import io.github.bucket4j.BandwidthBuilder;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.BucketConfiguration;
 import io.github.bucket4j.TokensInheritanceStrategy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.time.Duration;
+import java.util.Optional;
 import org.redisson.api.RBucket;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,7 +26,14 @@ import org.springframework.stereotype.Service;
 public class LimitUpdaterService {
 
     public static final String CAPACITY_KEY = "app.bucket.capacity";
+    public static final String LIMIT_CHANGES_TOPIC = "app.bucket.capacity.changes";
+    // Kept outside the app.bucket.capacity.<key> namespace, which belongs to the keyed buckets
+    public static final String EFFECTIVE_CAPACITY_KEY = "app.bucket.effective-capacity";
+    private static final String OPERATOR = "operator";
+    private static final String ADAPTIVE = "adaptive";
     private static final double ONE_PERCENT = 0.01;
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+    private static final String MESSAGE_SEPARATOR = ":";
     private static final Logger log = LoggerFactory.getLogger(LimitUpdaterService.class);
     private final Bucket rateLimitBucket;
     private final RedissonClient redissonClient;
@@ -29,58 +44,254 @@ public class LimitUpdaterService {
     @Value("${app.bucket.period:PT1H}")
     private String period;
 
-    private long lastKnownLimit;
+    // Each instance enforces its own slice, applied by the QuotaShardCoordinator
+    @Value("${app.bucket.sharding.enabled:false}")
+    private boolean sharded;
+
+    // The limit set through the config endpoint, and the one actually applied to the shared bucket.
+    // They only differ while the adaptive controller runs below the operator limit.
+    private volatile long operatorLimit;
+    private volatile long appliedLimit;
+    private volatile double ratePerSecond;
+    private volatile long capacity;
+    private RTopic limitChangesTopic;
+    private int limitChangesListenerId;
+
+    // Metrics
+    private final Counter localChangesCounter;
+    private final Counter pushedChangesCounter;
+    private final Counter polledChangesCounter;
+    private final Counter adaptiveChangesCounter;
+    private final Timer propagationDelayTimer;
 
     public LimitUpdaterService(Bucket rateLimitBucket, BucketConfiguration initialConfiguration,
-        RedissonClient redissonClient) {
+        RedissonClient redissonClient, MeterRegistry meterRegistry) {
         this.rateLimitBucket = rateLimitBucket;
         this.redissonClient = redissonClient;
 
-        this.lastKnownLimit = initialConfiguration.getBandwidths()[0].getCapacity();
+        Bandwidth initialBandwidth = initialConfiguration.getBandwidths()[0];
+        this.operatorLimit = initialBandwidth.getCapacity();
+        this.appliedLimit = operatorLimit;
+        this.ratePerSecond = initialBandwidth.getRefillTokens() * NANOS_PER_SECOND
+            / initialBandwidth.getRefillPeriodNanos();
+        this.capacity = initialBandwidth.getCapacity();
+
+        this.localChangesCounter = meterRegistry.counter(
+            "leakybucket_limit_changes_total", "source", "local");
+        this.pushedChangesCounter = meterRegistry.counter(
+            "leakybucket_limit_changes_total", "source", "push");
+        this.polledChangesCounter = meterRegistry.counter(
+            "leakybucket_limit_changes_total", "source", "poll");
+        this.adaptiveChangesCounter = meterRegistry.counter(
+            "leakybucket_limit_changes_total", "source", "adaptive");
+        this.propagationDelayTimer = Timer.builder("leakybucket_limit_propagation_delay_seconds")
+            .description("Time between a limit change being published and this instance receiving it")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+        meterRegistry.gauge("leakybucket_limit_rate_per_second", this, LimitUpdaterService::ratePerSecond);
     }
 
-    @Scheduled(fixedDelay = 5000)
-    public void checkAndApplyNewLimit() {
-        int newLimit = fetchLimitFromRedisOrDefault();
+    @PostConstruct
+    public void subscribeToLimitChanges() {
+        try {
+            limitChangesTopic = redissonClient.getTopic(LIMIT_CHANGES_TOPIC, StringCodec.INSTANCE);
+            limitChangesListenerId = limitChangesTopic.addListener(String.class,
+                (channel, message) -> onLimitChangePublished(message));
+        } catch (Exception e) {
+            // The poll below still picks changes up, only slower
+            log.warn("Could not subscribe to {}: {}", LIMIT_CHANGES_TOPIC, e.getMessage());
+        }
+    }
 
-        if (newLimit != lastKnownLimit) {
-            log.info("Detected bucket limit change: {} -> {}", lastKnownLimit, newLimit);
+    @PreDestroy
+    public void unsubscribeFromLimitChanges() {
+        if (limitChangesTopic != null) {
+            limitChangesTopic.removeListener(limitChangesListenerId);
+        }
+    }
 
-            BucketConfiguration newConfig = createNewConfiguration(newLimit);
+    /**
+     * Refill rate of the shared bucket as last applied by this instance, or of this instance's
+     * slice when quotas are sharded.
+     */
+    public double ratePerSecond() {
+        return ratePerSecond;
+    }
 
-            try {
-                rateLimitBucket.replaceConfiguration(newConfig, TokensInheritanceStrategy.AS_IS);
+    /**
+     * Most tokens the shared bucket holds at once as last applied by this instance, or its slice's
+     * bucket when quotas are sharded.
+     */
+    public long capacity() {
+        return capacity;
+    }
 
-                this.lastKnownLimit = newLimit;
-                log.info("Bucket configuration successfully updated to: {} per hour.", newLimit);
+    /**
+     * Limit set by the operator, the ceiling for the adaptive controller.
+     */
+    public long operatorLimit() {
+        return operatorLimit;
+    }
 
-            } catch (Exception e) {
-                log.error("Failed to replace Bucket4j configuration: {}", e.getMessage());
+    /**
+     * Limit currently applied to the shared bucket. When quotas are sharded, the limit the slices
+     * of all instances add up to.
+     */
+    public long appliedLimit() {
+        return appliedLimit;
+    }
+
+    /**
+     * Stores the new limit, applies it to the shared bucket once and tells the other instances
+     * about it, so they don't have to replace the configuration themselves. An operator change
+     * also discards the limit the adaptive controller had settled on.
+     *
+     * @return false if the shared bucket could not be updated; the stored limit is then picked up
+     * by the poll
+     */
+    public synchronized boolean updateLimit(int newLimit) {
+        redissonClient.<Integer>getBucket(CAPACITY_KEY).set(newLimit);
+        redissonClient.getBucket(EFFECTIVE_CAPACITY_KEY).delete();
+        operatorLimit = newLimit;
+        if (!applyToSharedBucket(newLimit)) {
+            return false;
+        }
+        localChangesCounter.increment();
+        publish(newLimit, OPERATOR);
+        return true;
+    }
+
+    /**
+     * Applies a limit below the operator one, without touching the operator setting. Used by the
+     * adaptive controller, which owns the value until the operator changes the limit again.
+     *
+     * @return false if the shared bucket could not be updated
+     */
+    public synchronized boolean applyEffectiveLimit(int newLimit) {
+        int effectiveLimit = (int) Math.min(newLimit, operatorLimit);
+        if (effectiveLimit == appliedLimit) {
+            return true;
+        }
+        redissonClient.<Integer>getBucket(EFFECTIVE_CAPACITY_KEY).set(effectiveLimit);
+        if (!applyToSharedBucket(effectiveLimit)) {
+            return false;
+        }
+        adaptiveChangesCounter.increment();
+        publish(effectiveLimit, ADAPTIVE);
+        return true;
+    }
+
+    // Fallback for instances that missed a published change, e.g. while reconnecting to Redis
+    @Scheduled(fixedDelayString = "${app.bucket.limit-poll-interval:PT30S}")
+    public synchronized void checkAndApplyNewLimit() {
+        int newOperatorLimit = fetchLimitFromRedis(CAPACITY_KEY).orElse(defaultCapacity);
+        operatorLimit = newOperatorLimit;
+        int newLimit = fetchLimitFromRedis(EFFECTIVE_CAPACITY_KEY)
+            .map(effectiveLimit -> Math.min(effectiveLimit, newOperatorLimit))
+            .orElse(newOperatorLimit);
+
+        if (newLimit != appliedLimit) {
+            log.info("Detected bucket limit change: {} -> {}", appliedLimit, newLimit);
+            if (applyToSharedBucket(newLimit)) {
+                polledChangesCounter.increment();
             }
         }
     }
 
-    private int fetchLimitFromRedisOrDefault() {
+    private void publish(int newLimit, String source) {
+        redissonClient.getTopic(LIMIT_CHANGES_TOPIC, StringCodec.INSTANCE)
+            .publish(newLimit + MESSAGE_SEPARATOR + System.currentTimeMillis() + MESSAGE_SEPARATOR + source);
+    }
+
+    private synchronized void onLimitChangePublished(String message) {
+        String[] parts = message.split(MESSAGE_SEPARATOR);
+        int newLimit = Integer.parseInt(parts[0]);
+        long publishedAt = Long.parseLong(parts[1]);
+        // Messages from instances that predate the source field are operator changes
+        boolean fromOperator = parts.length < 3 || OPERATOR.equals(parts[2]);
+        propagationDelayTimer.record(Duration.ofMillis(Math.max(0L, System.currentTimeMillis() - publishedAt)));
+
+        if (fromOperator) {
+            operatorLimit = newLimit;
+        }
+        if (newLimit != appliedLimit) {
+            // The publishing instance already replaced the shared configuration
+            log.info("Received bucket limit change: {} -> {}", appliedLimit, newLimit);
+            markApplied(newLimit);
+            pushedChangesCounter.increment();
+        }
+    }
+
+    /**
+     * Applies this instance's slice of the limit to its own bucket, in sharded mode.
+     */
+    public synchronized void applyInstanceLimit(long slice) {
+        rateLimitBucket.replaceConfiguration(
+            createNewConfiguration(slice, Duration.parse(period)), TokensInheritanceStrategy.AS_IS);
+        this.ratePerSecond = slice * NANOS_PER_SECOND / Duration.parse(period).toNanos();
+        this.capacity = capacityFor(slice);
+        log.info("Instance bucket configuration updated to: {} per hour.", slice);
+    }
+
+    private boolean applyToSharedBucket(int newLimit) {
+        if (sharded) {
+            // Split into slices by the coordinator, which replaces the instance buckets
+            markApplied(newLimit);
+            return true;
+        }
+        BucketConfiguration newConfig = createNewConfiguration(newLimit);
+
+        try {
+            rateLimitBucket.replaceConfiguration(newConfig, TokensInheritanceStrategy.AS_IS);
+
+            markApplied(newLimit);
+            log.info("Bucket configuration successfully updated to: {} per hour.", newLimit);
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to replace Bucket4j configuration: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void markApplied(int newLimit) {
+        this.appliedLimit = newLimit;
+        if (!sharded) {
+            this.ratePerSecond = newLimit * NANOS_PER_SECOND / Duration.parse(period).toNanos();
+            this.capacity = capacityFor(newLimit);
+        }
+    }
+
+    private Optional<Integer> fetchLimitFromRedis(String key) {
         try {
-            RBucket<Integer> bucket = redissonClient.getBucket(CAPACITY_KEY);
+            RBucket<Integer> bucket = redissonClient.getBucket(key);
             Integer value = bucket.get();
             if (value != null && value > 0) {
-                return value;
+                return Optional.of(value);
             }
         } catch (Exception e) {
-            log.debug("Could not read {} from Redis: {}", CAPACITY_KEY, e.getMessage());
+            log.debug("Could not read {} from Redis: {}", key, e.getMessage());
         }
-        return defaultCapacity;
+        return Optional.empty();
     }
 
     private BucketConfiguration createNewConfiguration(int limitPerHour) {
-        Duration duration = Duration.parse(period);
-        long capacity = (long) (limitPerHour * ONE_PERCENT);
+        return createNewConfiguration(limitPerHour, Duration.parse(period));
+    }
+
+    /**
+     * Configuration applied for a limit, with a burst capacity of 1% of it (at least one token).
+     */
+    public static BucketConfiguration createNewConfiguration(long limit, Duration period) {
         Bandwidth bandwidth = BandwidthBuilder.builder()
-            .capacity(capacity)
-            .refillGreedy(limitPerHour, duration)
+            .capacity(capacityFor(limit))
+            .refillGreedy(limit, period)
             .initialTokens(0L).build();
         return BucketConfiguration.builder().addLimit(bandwidth).build();
+    }
 
+    private static long capacityFor(long limit) {
+        return Math.max(1L, (long) (limit * ONE_PERCENT));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package org.example.leakybucket.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.redisson.api.RMap;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Splits the limit into per-instance slices, so every instance enforces its slice on a bucket key
+ * of its own instead of all of them contending for the shared one.
+ *
+ * <p>Every instance reports how many tokens it used per period and applies the slice assigned to
+ * it. One instance, holding a lease in Redis, assigns the slices: max-min fair on the reported
+ * usage plus headroom, with whatever is left split evenly, so unused share moves to the instances
+ * that need it. Slices only grow out of capacity that every other instance has confirmed to have
+ * given up, which keeps the sum of the enforced slices within the limit while they are rebalanced.
+ */
+@Service
+@ConditionalOnProperty(name = "app.bucket.sharding.enabled", havingValue = "true")
+public class QuotaShardCoordinator {
+
+    public static final String LEADER_KEY = "app.bucket.sharding.leader";
+    public static final String SLICES_KEY = "app.bucket.sharding.slices";
+    public static final String APPLIED_KEY = "app.bucket.sharding.applied";
+    public static final String USAGE_KEY = "app.bucket.sharding.usage";
+    private static final Logger log = LoggerFactory.getLogger(QuotaShardCoordinator.class);
+    private static final int LEASE_INTERVALS = 3;
+
+    private final LimitUpdaterService limitUpdaterService;
+    private final InstanceRegistry instanceRegistry;
+    private final RedissonClient redissonClient;
+    private final MeteredBucketListener bucketListener;
+    private final LeaderLease leaderLease;
+    private final String instanceId;
+    private final double headroom;
+    private final double periodSeconds;
+
+    private volatile long appliedSlice;
+    private volatile boolean leader;
+    private double lastConsumedTokens;
+    private long lastReportedAt = System.nanoTime();
+
+    // Metrics
+    private final Counter rebalanceCounter;
+
+    public QuotaShardCoordinator(
+        LimitUpdaterService limitUpdaterService,
+        InstanceRegistry instanceRegistry,
+        RedissonClient redissonClient,
+        MeteredBucketListener bucketListener,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.period:PT1H}") String period,
+        @Value("${app.bucket.sharding.rebalance-interval:PT5S}") String rebalanceInterval,
+        @Value("${app.bucket.sharding.headroom:1.2}") double headroom) {
+        this.limitUpdaterService = limitUpdaterService;
+        this.instanceRegistry = instanceRegistry;
+        this.redissonClient = redissonClient;
+        this.bucketListener = bucketListener;
+        this.instanceId = instanceRegistry.instanceId();
+        this.headroom = headroom;
+        this.periodSeconds = (double) Duration.parse(period).toNanos() / TimeUnit.SECONDS.toNanos(1);
+        this.leaderLease = new LeaderLease(redissonClient, LEADER_KEY, instanceId,
+            Duration.parse(rebalanceInterval).multipliedBy(LEASE_INTERVALS));
+
+        this.rebalanceCounter = meterRegistry.counter("leakybucket_sharding_rebalances_total");
+        meterRegistry.gauge("leakybucket_sharding_slice", this, coordinator -> coordinator.appliedSlice);
+        meterRegistry.gauge("leakybucket_sharding_leader", this, coordinator -> coordinator.leader ? 1 : 0);
+    }
+
+    @Scheduled(fixedDelayString = "${app.bucket.sharding.rebalance-interval:PT5S}")
+    public synchronized void rebalance() {
+        try {
+            reportUsage();
+            leader = leaderLease.acquireOrRenew();
+            if (leader) {
+                assignSlices();
+            }
+            applyAssignedSlice();
+        } catch (Exception e) {
+            // Keep the current slice, it was part of a valid assignment
+            log.warn("Could not rebalance quota slices: {}", e.getMessage());
+        }
+    }
+
+    private void reportUsage() {
+        long now = System.nanoTime();
+        double consumed = bucketListener.consumedTokens();
+        double seconds = (now - lastReportedAt) / 1e9;
+        // Tokens per period, the unit of the limit
+        long usage = seconds <= 0 ? 0L : Math.round((consumed - lastConsumedTokens) / seconds * periodSeconds);
+        lastConsumedTokens = consumed;
+        lastReportedAt = now;
+        map(USAGE_KEY).fastPut(instanceId, String.valueOf(usage));
+    }
+
+    private void assignSlices() {
+        RMap<String, String> slicesMap = map(SLICES_KEY);
+        RMap<String, String> appliedMap = map(APPLIED_KEY);
+        RMap<String, String> usageMap = map(USAGE_KEY);
+        List<String> live = instanceRegistry.liveInstances();
+        Map<String, Long> current = readLongs(slicesMap);
+        Map<String, Long> applied = readLongs(appliedMap);
+        Map<String, Long> usage = readLongs(usageMap);
+
+        // Instances that stopped beating no longer consume anything
+        Set<String> gone = new HashSet<>(current.keySet());
+        gone.addAll(applied.keySet());
+        gone.removeAll(live);
+        if (!gone.isEmpty()) {
+            String[] ids = gone.toArray(new String[0]);
+            slicesMap.fastRemove(ids);
+            appliedMap.fastRemove(ids);
+            usageMap.fastRemove(ids);
+            gone.forEach(id -> {
+                current.remove(id);
+                applied.remove(id);
+            });
+        }
+
+        long limit = limitUpdaterService.appliedLimit();
+        Map<String, Long> targets = fairShares(limit, live, usage, headroom);
+
+        // Shrink right away, grow only into what is free even counting slices not yet given up
+        Map<String, Long> assigned = new HashMap<>();
+        for (String id : live) {
+            assigned.put(id, Math.min(targets.get(id), current.getOrDefault(id, 0L)));
+        }
+        long budget = limit;
+        for (String id : live) {
+            budget -= Math.max(assigned.get(id), applied.getOrDefault(id, 0L));
+        }
+        for (String id : live) {
+            long slice = assigned.get(id);
+            long enforced = Math.max(slice, applied.getOrDefault(id, 0L));
+            long grown = Math.min(targets.get(id), enforced + Math.max(0L, budget));
+            if (grown > slice) {
+                budget -= Math.max(0L, grown - enforced);
+                assigned.put(id, grown);
+            }
+        }
+
+        if (!assigned.equals(current)) {
+            Map<String, String> values = new HashMap<>();
+            assigned.forEach((id, slice) -> values.put(id, String.valueOf(slice)));
+            slicesMap.putAll(values);
+            rebalanceCounter.increment();
+            log.info("Rebalanced quota slices of {} across {} instances: {}", limit, live.size(), assigned);
+        }
+    }
+
+    /**
+     * Max-min fair split of the limit on the usage plus headroom, with what nobody needs split
+     * evenly on top.
+     */
+    static Map<String, Long> fairShares(long limit, List<String> instances, Map<String, Long> usage,
+        double headroom) {
+        List<String> byDemand = new ArrayList<>(instances);
+        Map<String, Long> demand = new HashMap<>();
+        for (String id : instances) {
+            demand.put(id, (long) Math.ceil(usage.getOrDefault(id, 0L) * headroom));
+        }
+        byDemand.sort(Comparator.comparing(demand::get));
+
+        Map<String, Long> shares = new HashMap<>();
+        long remaining = limit;
+        for (int i = 0; i < byDemand.size(); i++) {
+            String id = byDemand.get(i);
+            long share = Math.min(demand.get(id), remaining / (byDemand.size() - i));
+            shares.put(id, share);
+            remaining -= share;
+        }
+        long extra = remaining / instances.size();
+        shares.replaceAll((id, share) -> share + extra);
+        return shares;
+    }
+
+    private void applyAssignedSlice() {
+        String assigned = map(SLICES_KEY).get(instanceId);
+        if (assigned == null) {
+            return;
+        }
+        long slice = Long.parseLong(assigned);
+        if (slice != appliedSlice && slice > 0) {
+            limitUpdaterService.applyInstanceLimit(slice);
+            appliedSlice = slice;
+        }
+        // Confirms the slice to the leader, also after a restart of this instance
+        map(APPLIED_KEY).fastPut(instanceId, String.valueOf(appliedSlice));
+    }
+
+    private RMap<String, String> map(String key) {
+        return redissonClient.getMap(key, StringCodec.INSTANCE);
+    }
+
+    private static Map<String, Long> readLongs(RMap<String, String> map) {
+        Map<String, Long> values = new HashMap<>();
+        map.readAllMap().forEach((id, value) -> values.put(id, Long.parseLong(value)));
+        return values;
+    }
+}
@@ -0,0 +1,37 @@
+package org.example.leakybucket.sqs;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Bulk variant of {@link MessageHandler}, used with {@code app.sqs.handler.mode=batch}. Only the
+ * messages not reported as failed are deleted; throwing fails the whole batch.
+ */
+public interface BatchMessageHandler {
+
+    /**
+     * @return ids of the messages that failed, empty when all succeeded
+     */
+    Set<String> handle(List<Message> messages) throws Exception;
+
+    /**
+     * Handles the batch one message at a time, for handlers without a bulk variant.
+     */
+    static BatchMessageHandler perMessage(MessageHandler handler) {
+        return messages -> {
+            Set<String> failed = new HashSet<>();
+            for (Message message : messages) {
+                try {
+                    handler.handle(message);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failed.add(message.messageId());
+                }
+            }
+            return failed;
+        };
+    }
+}
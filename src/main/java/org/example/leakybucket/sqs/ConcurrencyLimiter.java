@@ -0,0 +1,145 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caps the messages handed to the processing executor and not finished yet. The cap follows the
+ * gradient between the long-term and the recent latency of dispatched messages (queue wait plus
+ * processing): while recent latency matches the long-term one the cap grows by its square root,
+ * when messages start queueing it shrinks in proportion. By Little's law the cap settles around
+ * throughput times the uncongested latency, so received messages don't pile up in the executor
+ * queue while their visibility timeout runs out.
+ */
+@Component
+public class ConcurrencyLimiter {
+
+    private static final double SHORT_WINDOW = 10;
+    private static final double LONG_WINDOW = 600;
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+
+    private double limit;
+    private int inFlight;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    // Metrics
+    private final Timer queueWaitTimer;
+    private final Counter rejectedCounter;
+    private final Counter increaseCounter;
+    private final Counter decreaseCounter;
+
+    public ConcurrencyLimiter(
+        MeterRegistry meterRegistry,
+        @Value("${app.sqs.manual.concurrency.initial-limit:20}") int initialLimit,
+        @Value("${app.sqs.manual.concurrency.min-limit:1}") int minLimit,
+        @Value("${app.sqs.manual.concurrency.max-limit:100}") int maxLimit,
+        @Value("${app.sqs.manual.concurrency.smoothing:0.2}") double smoothing) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min-limit <= max-limit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.smoothing = smoothing;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+
+        this.queueWaitTimer = Timer.builder("leakybucket_concurrency_queue_wait_seconds")
+            .description("Time a dispatched message waited for an executor thread")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+        this.rejectedCounter = meterRegistry.counter("leakybucket_concurrency_rejected_total");
+        this.increaseCounter = meterRegistry.counter(
+            "leakybucket_concurrency_limit_changes_total", "direction", "increase");
+        this.decreaseCounter = meterRegistry.counter(
+            "leakybucket_concurrency_limit_changes_total", "direction", "decrease");
+        meterRegistry.gauge("leakybucket_concurrency_limit", this, ConcurrencyLimiter::limit);
+        meterRegistry.gauge("leakybucket_concurrency_in_flight", this, ConcurrencyLimiter::inFlight);
+    }
+
+    /**
+     * Reserves up to {@code permits} slots and returns how many were granted, 0 when full.
+     */
+    public synchronized int tryAcquire(int permits) {
+        int granted = Math.max(0, Math.min(permits, limit() - inFlight));
+        if (granted == 0) {
+            rejectedCounter.increment();
+        }
+        inFlight += granted;
+        return granted;
+    }
+
+    /**
+     * Gives back slots that were acquired but not used for a message.
+     */
+    public synchronized void release(int permits) {
+        inFlight -= permits;
+    }
+
+    /**
+     * Wraps a task that holds one acquired slot, releasing it and feeding the latency of the task
+     * into the limit once it completes.
+     */
+    public Runnable track(Runnable task) {
+        long dispatchedAt = System.nanoTime();
+        return () -> {
+            long startedAt = System.nanoTime();
+            queueWaitTimer.record(Duration.ofNanos(startedAt - dispatchedAt));
+            try {
+                task.run();
+            } finally {
+                onComplete(System.nanoTime() - dispatchedAt);
+            }
+        };
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private synchronized void onComplete(long rttNanos) {
+        int inFlightBefore = inFlight;
+        inFlight--;
+
+        if (longRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+            return;
+        }
+        shortRttNanos = average(shortRttNanos, rttNanos, SHORT_WINDOW);
+        longRttNanos = average(longRttNanos, rttNanos, LONG_WINDOW);
+
+        // Far below the cap the latency says nothing about it, don't let it grow unused
+        if (inFlightBefore < limit / 2) {
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, longRttNanos / shortRttNanos));
+        double target = limit * gradient + Math.sqrt(limit);
+        double newLimit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + target * smoothing));
+
+        if ((int) newLimit > (int) limit) {
+            increaseCounter.increment();
+        } else if ((int) newLimit < (int) limit) {
+            decreaseCounter.increment();
+        }
+        limit = newLimit;
+    }
+
+    private static double average(double current, double sample, double window) {
+        double alpha = 2 / (window + 1);
+        return current * (1 - alpha) + sample * alpha;
+    }
+}
@@ -0,0 +1,197 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Spreads dispatches at the interval the current refill rate implies, so tokens granted in a
+ * batch (a 10-message receive, a refill burst) reach the downstream one interval apart. Each
+ * dispatch gets the next slot of a virtual schedule; after an idle period up to
+ * {@code app.bucket.pacing.burst} dispatches may go out back to back.
+ *
+ * <p>Blocking callers wait for their slot themselves. Asynchronous ones are released by a single
+ * pacer thread from a queue ordered by slot, so only its head needs to be watched. Slots are handed
+ * out in increasing order, but a caller can be preempted between claiming its slot and queueing it,
+ * so a later slot may be queued first; queueing wakes the pacer to look at the head again. Waits
+ * are parked until shortly before the slot and spun for the rest, which keeps release precision
+ * well under a millisecond.
+ *
+ * <p>The tokens are still taken from the bucket first, pacing only shapes when they are used.
+ */
+@Component
+public class DispatchPacer {
+
+    private static final Logger log = LoggerFactory.getLogger(DispatchPacer.class);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LimitUpdaterService limitUpdaterService;
+    private final boolean enabled;
+    private final int burst;
+
+    // Theoretical arrival time of the next dispatch
+    private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+    private final Queue<PendingDispatch> pending =
+        new PriorityBlockingQueue<>(16, (first, second) -> Long.compare(first.slot - second.slot, 0L));
+    private volatile boolean running;
+    private Thread pacer;
+
+    // Metrics
+    private final Timer jitterTimer;
+
+    public DispatchPacer(
+        LimitUpdaterService limitUpdaterService,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.pacing.enabled:false}") boolean enabled,
+        @Value("${app.bucket.pacing.burst:1}") int burst) {
+        this.limitUpdaterService = limitUpdaterService;
+        this.enabled = enabled;
+        this.burst = Math.max(1, burst);
+
+        this.jitterTimer = Timer.builder("leakybucket_pacer_dispatch_jitter_seconds")
+            .description("Delay between the slot a dispatch was paced to and its actual release")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(1_000))
+            .maximumExpectedValue(Duration.ofMillis(100))
+            .register(meterRegistry);
+        meterRegistry.gauge("leakybucket_pacer_pending", pending, Queue::size);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        pacer = new Thread(this::releaseLoop, "dispatch-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+        log.info("Pacing dispatches with a burst allowance of {}", burst);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (pacer != null) {
+            pacer.interrupt();
+        }
+        // Release whatever is still waiting rather than leaving its message hanging
+        PendingDispatch dispatch;
+        while ((dispatch = pending.poll()) != null) {
+            dispatch.future.complete(null);
+        }
+    }
+
+    /**
+     * Blocks until the next dispatch slot.
+     */
+    public void pace() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        long slot = claimSlot();
+        awaitSlot(slot);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        recordJitter(slot);
+    }
+
+    /**
+     * Completes at the next dispatch slot, without holding the calling thread.
+     */
+    public CompletableFuture<Void> paceAsync() {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return releaseAt(claimSlot());
+    }
+
+    CompletableFuture<Void> releaseAt(long slot) {
+        if (slot - System.nanoTime() <= 0) {
+            recordJitter(slot);
+            return CompletableFuture.completedFuture(null);
+        }
+        PendingDispatch dispatch = new PendingDispatch(slot, new CompletableFuture<>());
+        pending.add(dispatch);
+        LockSupport.unpark(pacer);
+        return dispatch.future;
+    }
+
+    long claimSlot() {
+        long interval = intervalNanos();
+        // Idle time earns at most burst - 1 extra slots
+        long tolerance = (burst - 1) * interval;
+        while (true) {
+            long now = System.nanoTime();
+            long current = nextSlot.get();
+            long slot = Math.max(current, now - tolerance);
+            if (nextSlot.compareAndSet(current, slot + interval)) {
+                return Math.max(slot, now);
+            }
+        }
+    }
+
+    private long intervalNanos() {
+        double ratePerSecond = limitUpdaterService.ratePerSecond();
+        return ratePerSecond <= 0 ? 0L : (long) (NANOS_PER_SECOND / ratePerSecond);
+    }
+
+    private void releaseLoop() {
+        while (running) {
+            PendingDispatch head = pending.peek();
+            if (head == null) {
+                // paceAsync unparks this thread when something is queued
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            long remaining = head.slot - System.nanoTime();
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                // Woken early when an earlier slot is queued
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+                continue;
+            }
+            if (remaining > 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            // An earlier slot queued since the peek is due as well
+            PendingDispatch due = pending.poll();
+            recordJitter(due.slot);
+            due.future.complete(null);
+        }
+    }
+
+    private static void awaitSlot(long slot) {
+        long remaining;
+        while ((remaining = slot - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void recordJitter(long slot) {
+        jitterTimer.record(Duration.ofNanos(Math.max(0L, System.nanoTime() - slot)));
+    }
+
+    private record PendingDispatch(long slot, CompletableFuture<Void> future) {
+    }
+}
@@ -0,0 +1,101 @@
+package org.example.leakybucket.sqs;
+
+import io.awspring.cloud.sqs.annotation.SqsListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Same flow as {@link LeakyBucketSqsListener}, but neither waiting for a token nor the
+ * {@link MessageHandler} holds a listener thread, so {@code app.sqs.max-concurrent-messages} can be
+ * raised freely. The handler runs on the {@code messageExecutor}, which bounds how many messages
+ * are handled at the same time. Reserving the token is still a blocking call to the shared bucket,
+ * see {@link TokenBucket#consumeAsync}.
+ */
+@Component
+@Profile("async")
+public class LeakyBucketSqsAsyncListener {
+
+    private static final Logger log = LoggerFactory.getLogger(LeakyBucketSqsAsyncListener.class);
+
+    private final TokenBucket tokenBucket;
+    private final DispatchPacer dispatchPacer;
+    private final MessageHandler messageHandler;
+    private final TaskExecutor messageExecutor;
+
+    // Metrics
+    private final Counter messagesProcessedCounter;
+    private final Counter messagesErrorCounter;
+    private final Timer messageProcessingTimer;
+    private final Timer handlerSuccessTimer;
+    private final Timer handlerErrorTimer;
+
+    public LeakyBucketSqsAsyncListener(
+        TokenBucket tokenBucket,
+        DispatchPacer dispatchPacer,
+        MessageHandler messageHandler,
+        @Qualifier("messageExecutor") TaskExecutor messageExecutor,
+        MeterRegistry meterRegistry) {
+        this.tokenBucket = tokenBucket;
+        this.dispatchPacer = dispatchPacer;
+        this.messageHandler = messageHandler;
+        this.messageExecutor = messageExecutor;
+
+        // Initialize metrics
+        this.messagesProcessedCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "success");
+        this.messagesErrorCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "error");
+        this.messageProcessingTimer = Timer.builder("leakybucket_sqs_processing_duration_seconds")
+            .description("Time taken to process a single SQS message")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+        this.handlerSuccessTimer = MessageProcessor.handlerTimer(meterRegistry, "success");
+        this.handlerErrorTimer = MessageProcessor.handlerTimer(meterRegistry, "error");
+    }
+
+    @SqsListener("${app.sqs.queue-name:leaky-bucket}")
+    public CompletableFuture<Void> onMessage(Message message) {
+        return tokenBucket.consumeAsync(1L)
+            .thenCompose(ignored -> dispatchPacer.paceAsync())
+            .thenRunAsync(() -> handle(message), messageExecutor)
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    // The message is not acknowledged and becomes visible again after the timeout
+                    messagesErrorCounter.increment();
+                    log.error("Error while processing message asynchronously", error);
+                }
+            });
+    }
+
+    private void handle(Message message) {
+        long start = System.nanoTime();
+        boolean handled = false;
+        try {
+            messageHandler.handle(message);
+            handled = true;
+            messagesProcessedCounter.increment();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            if (handled) {
+                messageProcessingTimer.record(elapsed);
+            }
+            (handled ? handlerSuccessTimer : handlerErrorTimer).record(elapsed);
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package org.example.leakybucket.sqs;
 
 import io.awspring.cloud.sqs.annotation.SqsListener;
-import io.github.bucket4j.BlockingBucket;
-import io.github.bucket4j.Bucket;
+import io.awspring.cloud.sqs.listener.Visibility;
+import io.github.bucket4j.ConsumptionProbe;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 import java.time.Duration;
+import java.util.Map;
+import org.example.leakybucket.bucket.KeyedBucketRegistry;
+import org.example.leakybucket.bucket.TokenBucket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.Message;
 
 @Component
 @Profile("automatic")
@@ -19,25 +25,38 @@ public class LeakyBucketSqsListener {
 
     private static final Logger log = LoggerFactory.getLogger(LeakyBucketSqsListener.class);
 
-    private final Bucket bucket;
+    private final TokenBucket tokenBucket;
+    private final KeyedBucketRegistry keyedBucketRegistry;
+    private final DispatchPacer dispatchPacer;
+    private final MessageHandler messageHandler;
+    private final String keyAttribute;
 
     // Metrics
     private final Counter messagesProcessedCounter;
-    private final Counter messagesEmptyCounter;
     private final Counter messagesErrorCounter;
     private final Timer messageProcessingTimer;
+    private final Counter messagesDeferredCounter;
+    private final Timer globalTokenWaitTimer;
+    private final Timer handlerSuccessTimer;
+    private final Timer handlerErrorTimer;
 
     public LeakyBucketSqsListener(
-        Bucket bucket,
+        TokenBucket tokenBucket,
+        KeyedBucketRegistry keyedBucketRegistry,
+        DispatchPacer dispatchPacer,
+        MessageHandler messageHandler,
         SqsAsyncClient sqsClient,
-        MeterRegistry meterRegistry) {
-        this.bucket = bucket;
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.tenant.attribute:tenant}") String keyAttribute) {
+        this.tokenBucket = tokenBucket;
+        this.keyedBucketRegistry = keyedBucketRegistry;
+        this.dispatchPacer = dispatchPacer;
+        this.messageHandler = messageHandler;
+        this.keyAttribute = keyAttribute;
 
         // Initialize metrics
         this.messagesProcessedCounter = meterRegistry.counter(
             "leakybucket_sqs_messages_total", "result", "success");
-        this.messagesEmptyCounter = meterRegistry.counter(
-            "leakybucket_sqs_messages_total", "result", "empty");
         this.messagesErrorCounter = meterRegistry.counter(
             "leakybucket_sqs_messages_total", "result", "error");
         this.messageProcessingTimer = Timer.builder("leakybucket_sqs_processing_duration_seconds")
@@ -46,23 +65,69 @@ public class LeakyBucketSqsListener {
             .minimumExpectedValue(Duration.ofMillis(1))
             .maximumExpectedValue(Duration.ofSeconds(30))
             .register(meterRegistry);
+        this.messagesDeferredCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "deferred");
+        this.globalTokenWaitTimer = tokenWaitTimer(meterRegistry, "global");
+        this.handlerSuccessTimer = MessageProcessor.handlerTimer(meterRegistry, "success");
+        this.handlerErrorTimer = MessageProcessor.handlerTimer(meterRegistry, "error");
     }
 
     @SqsListener("${app.sqs.queue-name:leaky-bucket}")
-    public void onMessage(String payload) throws InterruptedException {
-        BlockingBucket blockingBucket = bucket.asBlocking();
+    public void onMessage(Message message, @Headers Map<String, Object> headers, Visibility visibility)
+        throws Exception {
+        // The key's token is checked first and without waiting, so a busy key holds neither this
+        // thread nor a global token. SQS message attributes are exposed as headers of the same name.
+        Object key = headers.get(keyAttribute);
+        if (key != null) {
+            ConsumptionProbe probe = keyedBucketRegistry.resolve(key.toString()).tryConsumeAndReturnRemaining(1L);
+            if (!probe.isConsumed()) {
+                messagesDeferredCounter.increment();
+                int delay = MessageProcessor.deferSeconds(probe.getNanosToWaitForRefill());
+                visibility.changeToAsync(delay);
+                // Not acknowledged, so it comes back once the key's bucket has refilled
+                throw new IllegalStateException(key + " is out of tokens, retrying in " + delay + "s");
+            }
+        }
         try {
-            blockingBucket.consume(1L);
-            long start = System.nanoTime();
-            Thread.sleep(500);
-            log.info("Processing message: {}", payload);
-            long end = System.nanoTime();
-            messageProcessingTimer.record(Duration.ofNanos(end - start));
+            long waitStart = System.nanoTime();
+            tokenBucket.consume(1L);
+            globalTokenWaitTimer.record(Duration.ofNanos(System.nanoTime() - waitStart));
+            dispatchPacer.pace();
+            handle(message);
             messagesProcessedCounter.increment();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             log.error("Consumer thread interrupted while waiting for rate limit token.");
             messagesErrorCounter.increment();
+        } catch (Exception e) {
+            // Not acknowledged, so the message becomes visible again after its timeout
+            messagesErrorCounter.increment();
+            throw e;
+        }
+    }
+
+    private void handle(Message message) throws Exception {
+        long start = System.nanoTime();
+        boolean handled = false;
+        try {
+            messageHandler.handle(message);
+            handled = true;
+        } finally {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            if (handled) {
+                messageProcessingTimer.record(elapsed);
+            }
+            (handled ? handlerSuccessTimer : handlerErrorTimer).record(elapsed);
         }
     }
+
+    static Timer tokenWaitTimer(MeterRegistry meterRegistry, String bucket) {
+        return Timer.builder("leakybucket_sqs_token_wait_seconds")
+            .description("Time a consumer waited for rate limit tokens before processing")
+            .tag("bucket", bucket)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+    }
 }
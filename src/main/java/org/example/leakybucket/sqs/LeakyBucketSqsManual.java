@@ -1,51 +1,76 @@
 package org.example.leakybucket.sqs;
 
-import io.github.bucket4j.Bucket;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.example.leakybucket.bucket.TokenReservation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
-import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 
 @Component
 @Profile("manual")
+@ConditionalOnProperty(name = "app.sqs.manual.mode", havingValue = "polling", matchIfMissing = true)
 public class LeakyBucketSqsManual {
 
     private static final Logger log = LoggerFactory.getLogger(LeakyBucketSqsManual.class);
+    public static final String BATCH_MODE = "batch";
+    public static final String PER_BATCH_TOKENS = "per-batch";
+    private static final String ALL_ATTRIBUTES = "All";
 
     private final SqsAsyncClient sqsClient;
-    private final Bucket bucket;
+    private final MessageProcessor messageProcessor;
+    private final TokenBucket tokenBucket;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final DispatchPacer dispatchPacer;
     private final String queueUrl;
+    private final boolean batchMode;
+    private final boolean perBatchTokens;
 
     // Metrics
     private final Counter messagesProcessedCounter;
     private final Counter messagesEmptyCounter;
     private final Counter messagesErrorCounter;
     private final Timer messageProcessingTimer;
+    private final Timer tokenWaitTimer;
     private final Counter schedulerProcessed;
 
-    private final ThreadPoolTaskExecutor threadPool;
+    private final TaskExecutor messageExecutor;
 
     public LeakyBucketSqsManual(
-        Bucket bucket,
+        TokenBucket tokenBucket,
         SqsAsyncClient sqsClient,
+        MessageProcessor messageProcessor,
+        ConcurrencyLimiter concurrencyLimiter,
+        DispatchPacer dispatchPacer,
         MeterRegistry meterRegistry,
-        @Value("${spring.cloud.aws.sqs.endpoint}") String endpoint,
-        @Value("${app.sqs.queue-name:leaky-bucket}") String queue) {
-        this.bucket = bucket;
+        @Qualifier("messageExecutor") TaskExecutor messageExecutor,
+        SqsQueueUrlResolver queueUrlResolver,
+        @Value("${app.sqs.queue-name:leaky-bucket}") String queue,
+        @Value("${app.sqs.handler.mode:single}") String handlerMode,
+        @Value("${app.sqs.handler.batch.tokens:per-message}") String batchTokens) {
+        this.tokenBucket = tokenBucket;
         this.sqsClient = sqsClient;
+        this.messageProcessor = messageProcessor;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.dispatchPacer = dispatchPacer;
+        this.messageExecutor = messageExecutor;
+        this.batchMode = BATCH_MODE.equalsIgnoreCase(handlerMode);
+        this.perBatchTokens = batchMode && PER_BATCH_TOKENS.equalsIgnoreCase(batchTokens);
 
         // Initialize metrics
         this.messagesProcessedCounter = meterRegistry.counter(
@@ -60,16 +85,11 @@ public class LeakyBucketSqsManual {
             .minimumExpectedValue(Duration.ofMillis(1))
             .maximumExpectedValue(Duration.ofSeconds(30))
             .register(meterRegistry);
+        this.tokenWaitTimer = LeakyBucketSqsListener.tokenWaitTimer(meterRegistry, "global");
         this.schedulerProcessed = meterRegistry.counter(
             "leakybucket_sqs_manual_scheduler_total");
 
-        this.queueUrl = String.format("%s/%s/%s", endpoint, "000000000000", queue);
-
-        this.threadPool = new ThreadPoolTaskExecutor();
-        this.threadPool.setCorePoolSize(10);
-        this.threadPool.setMaxPoolSize(20);
-        this.threadPool.setThreadNamePrefix("leaky-thread-");
-        this.threadPool.initialize();
+        this.queueUrl = queueUrlResolver.resolve(queue);
     }
 
     @Scheduled(fixedRate = 1000)
@@ -77,40 +97,61 @@ public class LeakyBucketSqsManual {
         log.info("Trying to consume some Bucket Token");
         this.schedulerProcessed.increment();
 
-        long tokensAvailable = bucket.getAvailableTokens();
+        long tokensAvailable = tokenBucket.getAvailableTokens();
         while (tokensAvailable > 0L) {
             int tokensToGet = Math.toIntExact(tokensAvailable >= 10L ? 10 : tokensAvailable);
-            pullAndProcess(tokensToGet);
-            tokensAvailable = bucket.getAvailableTokens();
+            int slots = concurrencyLimiter.tryAcquire(tokensToGet);
+            if (slots == 0) {
+                // Processing is behind, leave the messages in SQS until the next run
+                log.info("Concurrency limit of {} reached, backing off", concurrencyLimiter.limit());
+                break;
+            }
+            if (pullAndProcess(slots) < slots) {
+                // The queue is drained or the bucket ran low, unused tokens went back for the next run
+                break;
+            }
+            tokensAvailable = tokenBucket.getAvailableTokens();
         }
         log.info("Ending to consume some Bucket Token");
     }
 
-    private DeleteMessageRequest deleteMessages(Message message) {
-        return DeleteMessageRequest.builder()
-            .queueUrl(queueUrl)
-            .receiptHandle(message.receiptHandle())
-            .build();
-    }
-
-    private void pullAndProcess(int tokensToGet) {
-        long start = System.nanoTime();
-        try {
-            bucket.asBlocking().consume(tokensToGet);
+    // Each of the tokensToGet messages holds a concurrency slot acquired by the caller. Returns how
+    // many messages SQS returned.
+    private int pullAndProcess(int tokensToGet) {
+        int received = 0;
+        int dispatched = 0;
+        long waitStart = System.nanoTime();
+        // A failed receive closes the reservation uncommitted, which returns all of its tokens
+        try (TokenReservation reservation = tokenBucket.reserve(tokensToGet)) {
+            long start = System.nanoTime();
+            tokenWaitTimer.record(Duration.ofNanos(start - waitStart));
+            // Other consumers may have drained the bucket since it was read, so this can be fewer
             ReceiveMessageRequest request = ReceiveMessageRequest.builder()
                 .queueUrl(queueUrl)
-                .maxNumberOfMessages(tokensToGet)
+                .messageAttributeNames(ALL_ATTRIBUTES)
+                .maxNumberOfMessages(Math.toIntExact(reservation.tokens()))
                 .waitTimeSeconds(0)
                 .build();
 
             List<Message> messages = sqsClient.receiveMessage(request).get().messages();
+            received = messages.size();
+            // Only the messages SQS actually returned use a token, the rest go back to the bucket
+            reservation.commit(perBatchTokens ? Math.min(1, messages.size()) : messages.size());
             if (messages.isEmpty()) {
                 messagesEmptyCounter.increment();
-                bucket.addTokens(tokensToGet);
-                return;
+                return received;
             }
 
-            messages.forEach(message -> this.threadPool.execute(() -> processMessage(message)));
+            if (batchMode) {
+                // The messages of one receive form the batch, holding a single slot
+                dispatchWhenPaced(() -> messageProcessor.processBatch(queueUrl, messages));
+                dispatched = 1;
+            } else {
+                for (Message message : messages) {
+                    dispatchWhenPaced(() -> messageProcessor.process(queueUrl, message));
+                    dispatched++;
+                }
+            }
 
             long end = System.nanoTime();
             messageProcessingTimer.record(Duration.ofNanos(end - start));
@@ -122,21 +163,24 @@ public class LeakyBucketSqsManual {
             Thread.currentThread().interrupt();
             messagesErrorCounter.increment();
             log.error("Consumer thread interrupted while waiting for rate limit token.");
+        } finally {
+            concurrencyLimiter.release(tokensToGet - dispatched);
         }
+        return received;
     }
 
-    private void processMessage(Message message) {
-        try {
-            Thread.sleep(250);
-            log.info("Processing message: {}", message.body());
-            sqsClient.deleteMessage(deleteMessages(message)).get();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            messagesErrorCounter.increment();
-            log.error("Consumer thread interrupted while waiting for rate limit token.");
-        } catch (ExecutionException e) {
-            messagesErrorCounter.increment();
-            log.error("Error while interacting with SQS", e);
-        }
+    // Hands the task to the executor at its pacing slot without holding the scheduler thread. The
+    // task owns one slot from here on, which is released here if the executor refuses it.
+    private void dispatchWhenPaced(Runnable task) {
+        dispatchPacer.paceAsync().thenRun(() -> {
+            try {
+                messageExecutor.execute(concurrencyLimiter.track(task));
+            } catch (TaskRejectedException e) {
+                // Not deleted, so the messages become visible again after their timeout
+                concurrencyLimiter.release(1);
+                messagesErrorCounter.increment();
+                log.error("Processing executor rejected a message", e);
+            }
+        });
     }
 }
@@ -0,0 +1,12 @@
+package org.example.leakybucket.sqs;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * The downstream work done for a message once it has its tokens. Returning normally deletes the
+ * message; throwing leaves it in the queue to be redelivered after its visibility timeout.
+ */
+public interface MessageHandler {
+
+    void handle(Message message) throws Exception;
+}
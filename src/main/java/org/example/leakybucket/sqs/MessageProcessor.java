@@ -0,0 +1,197 @@
+package org.example.leakybucket.sqs;
+
+import io.github.bucket4j.ConsumptionProbe;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.example.leakybucket.bucket.KeyedBucketRegistry;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Runs the {@link MessageHandler} for messages pulled by the manual consumers, or the
+ * {@link BatchMessageHandler} for a batch of them. Messages carrying the
+ * {@code app.bucket.tenant.attribute} attribute also need a token of their own key's bucket. When
+ * it has none, the message is left in SQS until the key's bucket has refilled and its global token
+ * goes back to the bucket, so a busy key never holds a consumer thread or the budget of the others.
+ * Successfully processed messages are handed to the {@link SqsDeleteBatcher}.
+ */
+@Component
+public class MessageProcessor {
+
+    public static final String HANDLER_TIMER = "leakybucket_sqs_handler_duration_seconds";
+    private static final Logger log = LoggerFactory.getLogger(MessageProcessor.class);
+    // SQS caps the visibility timeout at 12 hours
+    private static final long MAX_VISIBILITY_SECONDS = TimeUnit.HOURS.toSeconds(12);
+
+    private final MessageHandler messageHandler;
+    private final BatchMessageHandler batchMessageHandler;
+    private final SqsDeleteBatcher deleteBatcher;
+    private final KeyedBucketRegistry keyedBucketRegistry;
+    private final TokenBucket tokenBucket;
+    private final SqsAsyncClient sqsClient;
+    private final String keyAttribute;
+    private final boolean perBatchTokens;
+
+    // Metrics
+    private final Counter messagesErrorCounter;
+    private final Counter messagesDeferredCounter;
+    private final Timer handlerSuccessTimer;
+    private final Timer handlerErrorTimer;
+    private final DistributionSummary batchSizeSummary;
+
+    public MessageProcessor(
+        MessageHandler messageHandler,
+        BatchMessageHandler batchMessageHandler,
+        SqsDeleteBatcher deleteBatcher,
+        KeyedBucketRegistry keyedBucketRegistry,
+        TokenBucket tokenBucket,
+        SqsAsyncClient sqsClient,
+        MeterRegistry meterRegistry,
+        @Value("${app.bucket.tenant.attribute:tenant}") String keyAttribute,
+        @Value("${app.sqs.handler.batch.tokens:per-message}") String batchTokens) {
+        this.messageHandler = messageHandler;
+        this.batchMessageHandler = batchMessageHandler;
+        this.deleteBatcher = deleteBatcher;
+        this.keyedBucketRegistry = keyedBucketRegistry;
+        this.tokenBucket = tokenBucket;
+        this.sqsClient = sqsClient;
+        this.keyAttribute = keyAttribute;
+        this.perBatchTokens = LeakyBucketSqsManual.PER_BATCH_TOKENS.equalsIgnoreCase(batchTokens);
+        this.messagesErrorCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "error");
+        this.messagesDeferredCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "deferred");
+        this.handlerSuccessTimer = handlerTimer(meterRegistry, "success");
+        this.handlerErrorTimer = handlerTimer(meterRegistry, "error");
+        this.batchSizeSummary = DistributionSummary.builder("leakybucket_sqs_handler_batch_size")
+            .description("Messages per call of the batch handler")
+            .register(meterRegistry);
+    }
+
+    public void process(String queueUrl, Message message) {
+        if (!tryKeyedToken(queueUrl, message)) {
+            tokenBucket.addTokens(1L);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean handled = false;
+        try {
+            messageHandler.handle(message);
+            handled = true;
+            deleteBatcher.delete(queueUrl, message.receiptHandle());
+        } catch (Exception e) {
+            // Not deleted, so it becomes visible again after its timeout
+            messagesErrorCounter.increment();
+            log.error("Handler failed for message {}", message.messageId(), e);
+        } finally {
+            (handled ? handlerSuccessTimer : handlerErrorTimer).record(Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    public void processBatch(String queueUrl, List<Message> received) {
+        List<Message> messages = new ArrayList<>(received.size());
+        for (Message message : received) {
+            if (tryKeyedToken(queueUrl, message)) {
+                messages.add(message);
+            }
+        }
+        int deferred = received.size() - messages.size();
+        if (deferred > 0) {
+            // A per-batch token is only unused when the whole batch was deferred
+            long unused = perBatchTokens ? (messages.isEmpty() ? 1L : 0L) : deferred;
+            if (unused > 0) {
+                tokenBucket.addTokens(unused);
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Set<String> failed = null;
+        try {
+            failed = batchMessageHandler.handle(messages);
+        } catch (Exception e) {
+            messagesErrorCounter.increment(messages.size());
+            log.error("Batch handler failed for {} messages", messages.size(), e);
+        } finally {
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+            for (Message message : messages) {
+                // Every message of the batch waited the whole call for its result
+                boolean succeeded = failed != null && !failed.contains(message.messageId());
+                (succeeded ? handlerSuccessTimer : handlerErrorTimer).record(elapsed);
+            }
+        }
+        if (failed == null) {
+            return;
+        }
+        batchSizeSummary.record(messages.size());
+        for (Message message : messages) {
+            if (failed.contains(message.messageId())) {
+                messagesErrorCounter.increment();
+            } else {
+                deleteBatcher.delete(queueUrl, message.receiptHandle());
+            }
+        }
+        if (!failed.isEmpty()) {
+            log.warn("Batch handler failed {} of {} messages", failed.size(), messages.size());
+        }
+    }
+
+    /**
+     * Time of a handler call, tagged with its outcome. Every consumer mode records one per message,
+     * failed calls included, so it is the sample the {@code AdaptiveLimitController} works from.
+     */
+    static Timer handlerTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder(HANDLER_TIMER)
+            .description("Time spent in the message handler, excluding the token wait")
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+    }
+
+    // Without a token the message stays invisible until the key's bucket has one again
+    private boolean tryKeyedToken(String queueUrl, Message message) {
+        MessageAttributeValue key = message.messageAttributes().get(keyAttribute);
+        if (key == null || key.stringValue() == null) {
+            return true;
+        }
+        ConsumptionProbe probe = keyedBucketRegistry.resolve(key.stringValue()).tryConsumeAndReturnRemaining(1L);
+        if (probe.isConsumed()) {
+            return true;
+        }
+        messagesDeferredCounter.increment();
+        int delay = deferSeconds(probe.getNanosToWaitForRefill());
+        sqsClient.changeMessageVisibility(request -> request
+                .queueUrl(queueUrl)
+                .receiptHandle(message.receiptHandle())
+                .visibilityTimeout(delay))
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    // It still becomes visible again after its current timeout
+                    log.debug("Could not defer message {}: {}", message.messageId(), error.getMessage());
+                }
+            });
+        return false;
+    }
+
+    static int deferSeconds(long nanosToWaitForRefill) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanosToWaitForRefill)
+            + (nanosToWaitForRefill % TimeUnit.SECONDS.toNanos(1) == 0 ? 0 : 1);
+        return (int) Math.max(1L, Math.min(MAX_VISIBILITY_SECONDS, seconds));
+    }
+}
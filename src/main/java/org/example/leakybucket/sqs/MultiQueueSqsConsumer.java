@@ -0,0 +1,268 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.example.leakybucket.sqs.WeightedTokenScheduler.QueueShare;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Drains several queues under the one shared limit. Each queue in {@code app.sqs.multi-queue.queues}
+ * ({@code name:weight}, comma separated) has a thread long-polling it; received messages wait for
+ * a token from the {@link WeightedTokenScheduler}, which shares the bucket between the queues
+ * that currently have messages by their weight. Received messages still waiting for a slot or a
+ * token get their visibility timeout extended, so they are not redelivered to another instance.
+ */
+@Component
+@Profile("manual")
+@ConditionalOnProperty(name = "app.sqs.manual.mode", havingValue = "multi-queue")
+public class MultiQueueSqsConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiQueueSqsConsumer.class);
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+    private static final String ALL_ATTRIBUTES = "All";
+    private static final String WEIGHT_SEPARATOR = ":";
+    private static final long NO_SLOT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long RECEIVE_ERROR_BACKOFF_MS = 1000L;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final SqsAsyncClient sqsClient;
+    private final MessageProcessor messageProcessor;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final DispatchPacer dispatchPacer;
+    private final TaskExecutor messageExecutor;
+    private final WeightedTokenScheduler scheduler;
+    private final List<QueueShare> shares = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Queue<HeldMessage> held = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService visibilityExtender;
+    private final int waitTimeSeconds;
+    private final int visibilityTimeoutSeconds;
+    private volatile boolean running;
+
+    // Metrics
+    private final MeterRegistry meterRegistry;
+    private final Counter messagesErrorCounter;
+
+    public MultiQueueSqsConsumer(
+        TokenBucket tokenBucket,
+        SqsAsyncClient sqsClient,
+        SqsQueueUrlResolver queueUrlResolver,
+        MessageProcessor messageProcessor,
+        ConcurrencyLimiter concurrencyLimiter,
+        DispatchPacer dispatchPacer,
+        MeterRegistry meterRegistry,
+        @Qualifier("messageExecutor") TaskExecutor messageExecutor,
+        @Value("${app.sqs.multi-queue.queues:${app.sqs.queue-name:leaky-bucket}}") String queues,
+        @Value("${app.sqs.multi-queue.max-wait:PT5S}") String maxWait,
+        @Value("${app.sqs.multi-queue.wait-time-seconds:20}") int waitTimeSeconds,
+        @Value("${app.sqs.multi-queue.visibility-timeout-seconds:60}") int visibilityTimeoutSeconds) {
+        this.sqsClient = sqsClient;
+        this.messageProcessor = messageProcessor;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.dispatchPacer = dispatchPacer;
+        this.messageExecutor = messageExecutor;
+        this.waitTimeSeconds = waitTimeSeconds;
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        this.meterRegistry = meterRegistry;
+        this.messagesErrorCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "error");
+
+        this.scheduler = new WeightedTokenScheduler(tokenBucket, Duration.parse(maxWait).toNanos());
+        for (String queue : queues.split(",")) {
+            String[] parts = queue.trim().split(WEIGHT_SEPARATOR);
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (weight < 1) {
+                throw new IllegalArgumentException("Queue weight must be at least 1: " + queue);
+            }
+            shares.add(scheduler.register(parts[0], queueUrlResolver.resolve(parts[0]), weight, meterRegistry));
+        }
+        meterRegistry.gauge("leakybucket_sqs_multi_queue_held_messages", held, Queue::size);
+
+        this.visibilityExtender = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("sqs-multi-queue-visibility-extender-"));
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        threads.add(new Thread(scheduler, "sqs-multi-queue-scheduler"));
+        for (QueueShare share : shares) {
+            threads.add(new Thread(() -> pollLoop(share), "sqs-multi-queue-" + share.queue));
+        }
+        threads.forEach(Thread::start);
+
+        // Extend well before the timeout runs out, a third of it is left as safety margin
+        long extendEverySeconds = Math.max(1, visibilityTimeoutSeconds / 3);
+        visibilityExtender.scheduleWithFixedDelay(this::extendHeldVisibility,
+            extendEverySeconds, extendEverySeconds, TimeUnit.SECONDS);
+        log.info("Consuming {} queues under the shared limit", shares.size());
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+        visibilityExtender.shutdownNow();
+    }
+
+    private void pollLoop(QueueShare share) {
+        Counter receivedCounter = meterRegistry.counter(
+            "leakybucket_sqs_queue_messages_total", "queue", share.queue, "stage", "received");
+        Counter dispatchedCounter = meterRegistry.counter(
+            "leakybucket_sqs_queue_messages_total", "queue", share.queue, "stage", "dispatched");
+        ReceiveMessageRequest request = ReceiveMessageRequest.builder()
+            .queueUrl(share.queueUrl)
+            .messageAttributeNames(ALL_ATTRIBUTES)
+            .maxNumberOfMessages(MAX_MESSAGES_PER_RECEIVE)
+            .waitTimeSeconds(waitTimeSeconds)
+            .visibilityTimeout(visibilityTimeoutSeconds)
+            .build();
+
+        while (running) {
+            try {
+                List<Message> messages = sqsClient.receiveMessage(request).get().messages();
+                receivedCounter.increment(messages.size());
+                long visibleUntil = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND;
+                List<HeldMessage> batch = new ArrayList<>(messages.size());
+                messages.forEach(message -> batch.add(new HeldMessage(share, message, visibleUntil)));
+                held.addAll(batch);
+                try {
+                    for (HeldMessage heldMessage : batch) {
+                        // Slot first, so no token is spent on a message that can't be processed yet
+                        awaitSlot();
+                        try {
+                            scheduler.awaitToken(share);
+                            dispatchPacer.pace();
+                            messageExecutor.execute(concurrencyLimiter.track(
+                                () -> messageProcessor.process(share.queueUrl, heldMessage.message)));
+                        } catch (InterruptedException | RuntimeException e) {
+                            concurrencyLimiter.release(1);
+                            throw e;
+                        }
+                        held.remove(heldMessage);
+                        dispatchedCounter.increment();
+                    }
+                } finally {
+                    // The ones left become visible again once their timeout runs out
+                    held.removeAll(batch);
+                }
+            } catch (ExecutionException e) {
+                messagesErrorCounter.increment();
+                log.error("Error while receiving from {}", share.queue, e);
+                sleepQuietly(RECEIVE_ERROR_BACKOFF_MS);
+            } catch (TaskRejectedException e) {
+                // Not deleted, so the messages left become visible again after their timeout
+                messagesErrorCounter.increment();
+                log.error("Processing executor rejected a message from {}", share.queue, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // Anything else must not end this queue's only polling thread
+                messagesErrorCounter.increment();
+                log.error("Unexpected error while consuming {}", share.queue, e);
+                sleepQuietly(RECEIVE_ERROR_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void extendHeldVisibility() {
+        try {
+            long threshold = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND / 2;
+            Map<QueueShare, List<HeldMessage>> expiring = new HashMap<>();
+            for (HeldMessage heldMessage : held) {
+                if (heldMessage.visibleUntil - threshold < 0) {
+                    expiring.computeIfAbsent(heldMessage.share, share -> new ArrayList<>()).add(heldMessage);
+                }
+            }
+            for (Map.Entry<QueueShare, List<HeldMessage>> entry : expiring.entrySet()) {
+                List<HeldMessage> messages = entry.getValue();
+                for (int first = 0; first < messages.size(); first += MAX_MESSAGES_PER_RECEIVE) {
+                    extendVisibility(entry.getKey(),
+                        messages.subList(first, Math.min(messages.size(), first + MAX_MESSAGES_PER_RECEIVE)));
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error while extending visibility of held messages", e);
+        }
+    }
+
+    private void extendVisibility(QueueShare share, List<HeldMessage> batch)
+        throws InterruptedException, ExecutionException {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                .id(String.valueOf(i))
+                .receiptHandle(batch.get(i).message.receiptHandle())
+                .visibilityTimeout(visibilityTimeoutSeconds)
+                .build());
+        }
+        ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder()
+            .queueUrl(share.queueUrl)
+            .entries(entries)
+            .build();
+        long visibleUntil = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND;
+        int extended = sqsClient.changeMessageVisibilityBatch(request).get().successful().size();
+        batch.forEach(heldMessage -> heldMessage.visibleUntil = visibleUntil);
+        meterRegistry.counter("leakybucket_sqs_queue_messages_total", "queue", share.queue,
+            "stage", "visibility_extended").increment(extended);
+    }
+
+    private void awaitSlot() throws InterruptedException {
+        while (concurrencyLimiter.tryAcquire(1) == 0) {
+            LockSupport.parkNanos(NO_SLOT_BACKOFF_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class HeldMessage {
+        private final QueueShare share;
+        private final Message message;
+        private volatile long visibleUntil;
+
+        private HeldMessage(QueueShare share, Message message, long visibleUntil) {
+            this.share = share;
+            this.message = message;
+            this.visibleUntil = visibleUntil;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.leakybucket.sqs;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Default handler standing in for the downstream: sleeps for a fixed latency per call and logs the
+ * message. A bulk call pays that latency once plus a small cost per item.
+ */
+public class SimulatedMessageHandler implements MessageHandler, BatchMessageHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SimulatedMessageHandler.class);
+
+    private final long latencyMillis;
+    private final long perItemLatencyMillis;
+
+    public SimulatedMessageHandler(Duration latency, Duration perItemLatency) {
+        this.latencyMillis = latency.toMillis();
+        this.perItemLatencyMillis = perItemLatency.toMillis();
+    }
+
+    @Override
+    public void handle(Message message) throws InterruptedException {
+        Thread.sleep(latencyMillis);
+        log.info("Processing message: {}", message.body());
+    }
+
+    @Override
+    public Set<String> handle(List<Message> messages) throws InterruptedException {
+        Thread.sleep(latencyMillis + perItemLatencyMillis * messages.size());
+        messages.forEach(message -> log.info("Processing message: {}", message.body()));
+        return Set.of();
+    }
+}
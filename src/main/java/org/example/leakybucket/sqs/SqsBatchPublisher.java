@@ -0,0 +1,109 @@
+package org.example.leakybucket.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+/**
+ * Publishes messages with SendMessageBatch, 10 per call, keeping at most
+ * {@code app.sqs.publish.max-in-flight-batches} calls outstanding. Payloads are generated as the
+ * window frees up, so memory stays flat regardless of how many messages are requested.
+ */
+@Component
+public class SqsBatchPublisher {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsBatchPublisher.class);
+    private static final int MAX_BATCH_SIZE = 10;
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    private final SqsAsyncClient sqsClient;
+    private final int maxInFlightBatches;
+
+    public SqsBatchPublisher(
+        SqsAsyncClient sqsClient,
+        @Value("${app.sqs.publish.max-in-flight-batches:50}") int maxInFlightBatches) {
+        this.sqsClient = sqsClient;
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+
+    public PublishReport publish(String queueUrl, int count, IntFunction<String> payloads)
+        throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlightBatches);
+        AtomicInteger published = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Queue<FailedEntry> failures = new ConcurrentLinkedQueue<>();
+
+        for (int first = 1; first <= count; first += MAX_BATCH_SIZE) {
+            int last = Math.min(count, first + MAX_BATCH_SIZE - 1);
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(last - first + 1);
+            for (int i = first; i <= last; i++) {
+                entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .messageBody(payloads.apply(i))
+                    .build());
+            }
+            SendMessageBatchRequest request = SendMessageBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(entries)
+                .build();
+
+            inFlight.acquire();
+            CompletableFuture<SendMessageBatchResponse> sent;
+            try {
+                sent = sqsClient.sendMessageBatch(request);
+            } catch (RuntimeException e) {
+                // Thrown before anything was sent (validation, closed client), counted like a failed call
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((response, error) -> {
+                try {
+                    if (error != null) {
+                        log.error("SendMessageBatch failed for {} entries: {}", entries.size(), error.getMessage());
+                        failed.addAndGet(entries.size());
+                        entries.forEach(entry -> report(failures,
+                            new FailedEntry(entry.id(), error.getClass().getSimpleName(), error.getMessage())));
+                        return;
+                    }
+                    published.addAndGet(response.successful().size());
+                    for (BatchResultErrorEntry entry : response.failed()) {
+                        failed.incrementAndGet();
+                        report(failures, new FailedEntry(entry.id(), entry.code(), entry.message()));
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+        // Wait for the remaining batches by taking back the whole window
+        inFlight.acquire(maxInFlightBatches);
+
+        return new PublishReport(count, published.get(), failed.get(), List.copyOf(failures));
+    }
+
+    private static void report(Queue<FailedEntry> failures, FailedEntry entry) {
+        // Counting the queue is linear, but it never grows past the reporting cap
+        if (failures.size() < MAX_REPORTED_FAILURES) {
+            failures.add(entry);
+        }
+    }
+
+    public record PublishReport(int requested, int published, int failed, List<FailedEntry> failures) {
+    }
+
+    public record FailedEntry(String id, String code, String message) {
+    }
+}
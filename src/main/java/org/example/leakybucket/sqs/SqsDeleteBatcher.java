@@ -0,0 +1,166 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+
+/**
+ * Collects receipt handles from all workers and deletes them with DeleteMessageBatch, either when
+ * ten are pending for a queue or when the flush interval elapses. Workers only enqueue, they never
+ * wait for SQS. Entries the batch call rejects are retried once with a single DeleteMessage; if
+ * that fails too, the message becomes visible again and is redelivered.
+ */
+@Component
+public class SqsDeleteBatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsDeleteBatcher.class);
+    private static final int MAX_BATCH_SIZE = 10;
+
+    private final SqsAsyncClient sqsClient;
+    private final Map<String, PendingDeletes> pendingByQueue = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    // Metrics
+    private final Counter batchesCounter;
+    private final Counter deletedCounter;
+    private final Counter retriedCounter;
+    private final Counter failedCounter;
+    private final AtomicInteger pendingGauge;
+
+    public SqsDeleteBatcher(
+        SqsAsyncClient sqsClient,
+        MeterRegistry meterRegistry,
+        @Value("${app.sqs.delete.flush-interval:PT0.05S}") String flushInterval) {
+        this.sqsClient = sqsClient;
+
+        this.batchesCounter = meterRegistry.counter("leakybucket_sqs_delete_batches_total");
+        this.deletedCounter = meterRegistry.counter(
+            "leakybucket_sqs_deletes_total", "result", "batched");
+        this.retriedCounter = meterRegistry.counter(
+            "leakybucket_sqs_deletes_total", "result", "retried");
+        this.failedCounter = meterRegistry.counter(
+            "leakybucket_sqs_deletes_total", "result", "failed");
+        this.pendingGauge = meterRegistry.gauge("leakybucket_sqs_deletes_pending", new AtomicInteger());
+
+        long intervalNanos = Duration.parse(flushInterval).toNanos();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("sqs-delete-flusher-"));
+        this.flusher.scheduleWithFixedDelay(this::flushAll, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void delete(String queueUrl, String receiptHandle) {
+        PendingDeletes pending = pendingByQueue.computeIfAbsent(queueUrl, url -> new PendingDeletes());
+        pending.receiptHandles.add(receiptHandle);
+        pendingGauge.incrementAndGet();
+        if (pending.size.incrementAndGet() >= MAX_BATCH_SIZE) {
+            flusher.execute(() -> flush(queueUrl, pending, true));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flushAll();
+    }
+
+    private void flushAll() {
+        try {
+            pendingByQueue.forEach((queueUrl, pending) -> flush(queueUrl, pending, false));
+        } catch (Exception e) {
+            log.error("Error while flushing pending SQS deletes", e);
+        }
+    }
+
+    private void flush(String queueUrl, PendingDeletes pending, boolean fullBatchesOnly) {
+        while (pending.size.get() >= (fullBatchesOnly ? MAX_BATCH_SIZE : 1)) {
+            List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            String receiptHandle;
+            while (batch.size() < MAX_BATCH_SIZE && (receiptHandle = pending.receiptHandles.poll()) != null) {
+                batch.add(receiptHandle);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending.size.addAndGet(-batch.size());
+            pendingGauge.addAndGet(-batch.size());
+            sendBatch(queueUrl, batch);
+        }
+    }
+
+    private void sendBatch(String queueUrl, List<String> receiptHandles) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(receiptHandles.size());
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            entries.add(DeleteMessageBatchRequestEntry.builder()
+                .id(String.valueOf(i))
+                .receiptHandle(receiptHandles.get(i))
+                .build());
+        }
+        DeleteMessageBatchRequest request = DeleteMessageBatchRequest.builder()
+            .queueUrl(queueUrl)
+            .entries(entries)
+            .build();
+
+        batchesCounter.increment();
+        sqsClient.deleteMessageBatch(request).whenComplete((response, error) -> {
+            if (error != null) {
+                log.warn("DeleteMessageBatch failed, retrying {} entries individually: {}",
+                    entries.size(), error.getMessage());
+                entries.forEach(entry -> retry(queueUrl, entry.receiptHandle()));
+                return;
+            }
+            deletedCounter.increment(response.successful().size());
+            if (response.hasFailed() && !response.failed().isEmpty()) {
+                Map<String, DeleteMessageBatchRequestEntry> entriesById = entries.stream()
+                    .collect(Collectors.toMap(DeleteMessageBatchRequestEntry::id, Function.identity()));
+                for (BatchResultErrorEntry failed : response.failed()) {
+                    log.warn("Delete of batch entry {} failed with {}: {}",
+                        failed.id(), failed.code(), failed.message());
+                    retry(queueUrl, entriesById.get(failed.id()).receiptHandle());
+                }
+            }
+        });
+    }
+
+    private void retry(String queueUrl, String receiptHandle) {
+        DeleteMessageRequest request = DeleteMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .receiptHandle(receiptHandle)
+            .build();
+        sqsClient.deleteMessage(request).whenComplete((response, error) -> {
+            if (error != null) {
+                failedCounter.increment();
+                log.error("Could not delete message, it will be redelivered: {}", error.getMessage());
+            } else {
+                retriedCounter.increment();
+            }
+        });
+    }
+
+    private static final class PendingDeletes {
+        private final Queue<String> receiptHandles = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+}
@@ -0,0 +1,365 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Continuous alternative to the 1-second polling loop of {@link LeakyBucketSqsManual}. A receiver
+ * thread long-polls SQS into a local buffer sized to cover {@code app.sqs.pipeline.lookahead} at
+ * the current refill rate, and a dispatcher thread releases buffered messages to the processing
+ * executor as tokens become available. Messages waiting in the buffer get their visibility
+ * timeout extended so they are not redelivered to another instance.
+ */
+@Component
+@Profile("manual")
+@ConditionalOnProperty(name = "app.sqs.manual.mode", havingValue = "pipeline")
+public class SqsPrefetchPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(SqsPrefetchPipeline.class);
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+    private static final String ALL_ATTRIBUTES = "All";
+    private static final int MIN_BUFFER_DEPTH = MAX_MESSAGES_PER_RECEIVE;
+    private static final long BUFFER_FULL_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long RECEIVE_ERROR_BACKOFF_MS = 1000L;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final SqsAsyncClient sqsClient;
+    private final TokenBucket tokenBucket;
+    private final LimitUpdaterService limitUpdaterService;
+    private final MessageProcessor messageProcessor;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final DispatchPacer dispatchPacer;
+    private final TaskExecutor messageExecutor;
+    private final String queueUrl;
+    private final long lookaheadNanos;
+    private final int maxBufferDepth;
+    private final int waitTimeSeconds;
+    private final int visibilityTimeoutSeconds;
+    private final boolean batchMode;
+    private final boolean perBatchTokens;
+    private final int batchMaxSize;
+    private final long batchMaxWaitNanos;
+
+    private final BlockingDeque<BufferedMessage> buffer = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService visibilityExtender;
+    private volatile boolean running;
+    private Thread receiver;
+    private Thread dispatcher;
+
+    // Metrics
+    private final Counter receivedCounter;
+    private final Counter dispatchedCounter;
+    private final Counter visibilityExtendedCounter;
+    private final Counter messagesErrorCounter;
+    private final Timer tokenWaitTimer;
+
+    public SqsPrefetchPipeline(
+        SqsAsyncClient sqsClient,
+        TokenBucket tokenBucket,
+        LimitUpdaterService limitUpdaterService,
+        MessageProcessor messageProcessor,
+        ConcurrencyLimiter concurrencyLimiter,
+        DispatchPacer dispatchPacer,
+        MeterRegistry meterRegistry,
+        @Qualifier("messageExecutor") TaskExecutor messageExecutor,
+        SqsQueueUrlResolver queueUrlResolver,
+        @Value("${app.sqs.queue-name:leaky-bucket}") String queue,
+        @Value("${app.sqs.pipeline.lookahead:PT2S}") String lookahead,
+        @Value("${app.sqs.pipeline.max-buffer:500}") int maxBufferDepth,
+        @Value("${app.sqs.pipeline.wait-time-seconds:20}") int waitTimeSeconds,
+        @Value("${app.sqs.pipeline.visibility-timeout-seconds:30}") int visibilityTimeoutSeconds,
+        @Value("${app.sqs.handler.mode:single}") String handlerMode,
+        @Value("${app.sqs.handler.batch.tokens:per-message}") String batchTokens,
+        @Value("${app.sqs.handler.batch.max-size:10}") int batchMaxSize,
+        @Value("${app.sqs.handler.batch.max-wait:PT0.2S}") String batchMaxWait) {
+        this.sqsClient = sqsClient;
+        this.tokenBucket = tokenBucket;
+        this.limitUpdaterService = limitUpdaterService;
+        this.messageProcessor = messageProcessor;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.dispatchPacer = dispatchPacer;
+        this.messageExecutor = messageExecutor;
+        this.lookaheadNanos = Duration.parse(lookahead).toNanos();
+        this.maxBufferDepth = Math.max(MIN_BUFFER_DEPTH, maxBufferDepth);
+        this.waitTimeSeconds = waitTimeSeconds;
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        this.queueUrl = queueUrlResolver.resolve(queue);
+        this.batchMode = LeakyBucketSqsManual.BATCH_MODE.equalsIgnoreCase(handlerMode);
+        this.perBatchTokens = batchMode && LeakyBucketSqsManual.PER_BATCH_TOKENS.equalsIgnoreCase(batchTokens);
+        this.batchMaxSize = Math.max(1, batchMaxSize);
+        this.batchMaxWaitNanos = Duration.parse(batchMaxWait).toNanos();
+
+        this.receivedCounter = meterRegistry.counter(
+            "leakybucket_sqs_pipeline_messages_total", "stage", "received");
+        this.dispatchedCounter = meterRegistry.counter(
+            "leakybucket_sqs_pipeline_messages_total", "stage", "dispatched");
+        this.visibilityExtendedCounter = meterRegistry.counter(
+            "leakybucket_sqs_pipeline_messages_total", "stage", "visibility_extended");
+        this.messagesErrorCounter = meterRegistry.counter(
+            "leakybucket_sqs_messages_total", "result", "error");
+        this.tokenWaitTimer = LeakyBucketSqsListener.tokenWaitTimer(meterRegistry, "global");
+        meterRegistry.gauge("leakybucket_sqs_pipeline_buffer_size", buffer, BlockingDeque::size);
+        meterRegistry.gauge("leakybucket_sqs_pipeline_buffer_target", this, SqsPrefetchPipeline::targetDepth);
+
+        this.visibilityExtender = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("sqs-visibility-extender-"));
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        receiver = new Thread(this::receiveLoop, "sqs-prefetch-receiver");
+        dispatcher = new Thread(batchMode ? this::dispatchBatchLoop : this::dispatchLoop, "sqs-prefetch-dispatcher");
+        receiver.start();
+        dispatcher.start();
+
+        // Extend well before the timeout runs out, a third of it is left as safety margin
+        long extendEverySeconds = Math.max(1, visibilityTimeoutSeconds / 3);
+        visibilityExtender.scheduleWithFixedDelay(this::extendBufferedVisibility,
+            extendEverySeconds, extendEverySeconds, TimeUnit.SECONDS);
+        log.info("Started SQS prefetch pipeline for {}", queueUrl);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        receiver.interrupt();
+        dispatcher.interrupt();
+        visibilityExtender.shutdownNow();
+        // Whatever is still buffered becomes visible again once its timeout runs out
+        log.info("Stopped SQS prefetch pipeline with {} buffered messages", buffer.size());
+    }
+
+    int targetDepth() {
+        double expectedInLookahead = limitUpdaterService.ratePerSecond() * lookaheadNanos / NANOS_PER_SECOND;
+        return (int) Math.min(maxBufferDepth, Math.max(MIN_BUFFER_DEPTH, Math.ceil(expectedInLookahead)));
+    }
+
+    private void receiveLoop() {
+        while (running) {
+            int free = targetDepth() - buffer.size();
+            if (free <= 0) {
+                LockSupport.parkNanos(BUFFER_FULL_BACKOFF_NANOS);
+                continue;
+            }
+            ReceiveMessageRequest request = ReceiveMessageRequest.builder()
+                .queueUrl(queueUrl)
+                .messageAttributeNames(ALL_ATTRIBUTES)
+                .maxNumberOfMessages(Math.min(MAX_MESSAGES_PER_RECEIVE, free))
+                .waitTimeSeconds(waitTimeSeconds)
+                .visibilityTimeout(visibilityTimeoutSeconds)
+                .build();
+            try {
+                List<Message> messages = sqsClient.receiveMessage(request).get().messages();
+                long visibleUntil = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND;
+                messages.forEach(message -> buffer.add(new BufferedMessage(message, visibleUntil)));
+                receivedCounter.increment(messages.size());
+            } catch (ExecutionException e) {
+                messagesErrorCounter.increment();
+                log.error("Error while receiving from SQS", e);
+                sleepQuietly(RECEIVE_ERROR_BACKOFF_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        List<BufferedMessage> ready = new ArrayList<>(MAX_MESSAGES_PER_RECEIVE);
+        while (running) {
+            int slots = 0;
+            long granted = 0L;
+            int dispatched = 0;
+            try {
+                ready.add(buffer.take());
+                buffer.drainTo(ready, MAX_MESSAGES_PER_RECEIVE - 1);
+
+                slots = concurrencyLimiter.tryAcquire(ready.size());
+                if (slots > 0) {
+                    // Take whatever the bucket has for the whole batch in one call, otherwise wait for one
+                    granted = tokenBucket.tryConsumeAsMuchAsPossible(slots);
+                    if (granted == 0L) {
+                        long waitStart = System.nanoTime();
+                        tokenBucket.consume(1L);
+                        tokenWaitTimer.record(Duration.ofNanos(System.nanoTime() - waitStart));
+                        granted = 1L;
+                    }
+                    for (; dispatched < granted; dispatched++) {
+                        Message message = ready.get(dispatched).message;
+                        dispatchPacer.pace();
+                        messageExecutor.execute(concurrencyLimiter.track(() -> messageProcessor.process(queueUrl, message)));
+                        dispatchedCounter.increment();
+                    }
+                }
+                // No slot or token for the rest yet, put them back in their original order
+                for (int i = ready.size() - 1; i >= dispatched; i--) {
+                    buffer.addFirst(ready.get(i));
+                }
+                if (slots == 0) {
+                    LockSupport.parkNanos(BUFFER_FULL_BACKOFF_NANOS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                messagesErrorCounter.increment();
+                log.error("Error while dispatching buffered messages", e);
+            } finally {
+                concurrencyLimiter.release(slots - dispatched);
+                // Messages not handed over when pacing or the executor failed must not keep their tokens
+                refund(granted - dispatched);
+                ready.clear();
+            }
+        }
+    }
+
+    // Collects up to batchMaxSize messages, or what arrived within batchMaxWait, per handler call
+    private void dispatchBatchLoop() {
+        List<BufferedMessage> batch = new ArrayList<>(batchMaxSize);
+        while (running) {
+            boolean dispatched = false;
+            long charged = 0L;
+            try {
+                batch.add(buffer.take());
+                long deadline = System.nanoTime() + batchMaxWaitNanos;
+                while (batch.size() < batchMaxSize) {
+                    BufferedMessage next = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    buffer.drainTo(batch, batchMaxSize - batch.size());
+                }
+
+                if (concurrencyLimiter.tryAcquire(1) == 0) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        buffer.addFirst(batch.get(i));
+                    }
+                    LockSupport.parkNanos(BUFFER_FULL_BACKOFF_NANOS);
+                    continue;
+                }
+                try {
+                    long waitStart = System.nanoTime();
+                    long tokens = perBatchTokens ? 1L : batch.size();
+                    tokenBucket.consume(tokens);
+                    charged = tokens;
+                    tokenWaitTimer.record(Duration.ofNanos(System.nanoTime() - waitStart));
+                    List<Message> messages = batch.stream().map(buffered -> buffered.message).toList();
+                    dispatchPacer.pace();
+                    messageExecutor.execute(concurrencyLimiter.track(() -> messageProcessor.processBatch(queueUrl, messages)));
+                    dispatched = true;
+                    dispatchedCounter.increment(messages.size());
+                } finally {
+                    if (!dispatched) {
+                        concurrencyLimiter.release(1);
+                        refund(charged);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // Not deleted, so the batch becomes visible again after its timeout
+                messagesErrorCounter.increment(batch.size());
+                log.error("Error while dispatching a batch of buffered messages", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void refund(long tokens) {
+        if (tokens <= 0L) {
+            return;
+        }
+        try {
+            tokenBucket.addTokens(tokens);
+        } catch (Exception e) {
+            log.warn("Could not return {} undispatched tokens: {}", tokens, e.getMessage());
+        }
+    }
+
+    private void extendBufferedVisibility() {
+        try {
+            long threshold = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND / 2;
+            List<BufferedMessage> expiring = new ArrayList<>();
+            for (BufferedMessage buffered : buffer) {
+                if (buffered.visibleUntil - threshold < 0) {
+                    expiring.add(buffered);
+                }
+            }
+            for (int first = 0; first < expiring.size(); first += MAX_MESSAGES_PER_RECEIVE) {
+                extendVisibility(expiring.subList(first, Math.min(expiring.size(), first + MAX_MESSAGES_PER_RECEIVE)));
+            }
+        } catch (Exception e) {
+            log.error("Error while extending visibility of buffered messages", e);
+        }
+    }
+
+    private void extendVisibility(List<BufferedMessage> batch) throws InterruptedException, ExecutionException {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                .id(String.valueOf(i))
+                .receiptHandle(batch.get(i).message.receiptHandle())
+                .visibilityTimeout(visibilityTimeoutSeconds)
+                .build());
+        }
+        ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder()
+            .queueUrl(queueUrl)
+            .entries(entries)
+            .build();
+        long visibleUntil = System.nanoTime() + visibilityTimeoutSeconds * NANOS_PER_SECOND;
+        int extended = sqsClient.changeMessageVisibilityBatch(request).get().successful().size();
+        batch.forEach(buffered -> buffered.visibleUntil = visibleUntil);
+        visibilityExtendedCounter.increment(extended);
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class BufferedMessage {
+        private final Message message;
+        private volatile long visibleUntil;
+
+        private BufferedMessage(Message message, long visibleUntil) {
+            this.message = message;
+            this.visibleUntil = visibleUntil;
+        }
+    }
+}
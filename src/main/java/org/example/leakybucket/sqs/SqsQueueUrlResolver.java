@@ -0,0 +1,24 @@
+package org.example.leakybucket.sqs;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds queue URLs from queue names for the configured SQS endpoint.
+ */
+@Component
+public class SqsQueueUrlResolver {
+
+    // LocalStack account id is static; for real AWS this would be different
+    private static final String ACCOUNT_ID = "000000000000";
+
+    private final String endpoint;
+
+    public SqsQueueUrlResolver(@Value("${spring.cloud.aws.sqs.endpoint}") String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String resolve(String queueName) {
+        return String.format("%s/%s/%s", endpoint, ACCOUNT_ID, queueName);
+    }
+}
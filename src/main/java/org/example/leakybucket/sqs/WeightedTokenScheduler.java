@@ -0,0 +1,178 @@
+package org.example.leakybucket.sqs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the tokens of the shared bucket between queues that have messages waiting for one.
+ * Each queue's poller asks for one token at a time, once its message holds a processing slot, so
+ * the pending demand is at most one token per queue. Tokens are taken for all of it at once and
+ * handed out with smooth weighted round robin: while tokens are scarce, several queues are waiting
+ * at every grant and over time each of them gets its weight's share. Queues without waiting
+ * messages don't take part, which leaves their share to the busy ones. A queue that has not been
+ * served for {@code maxWaitNanos} while waiting goes first, whatever its weight.
+ */
+class WeightedTokenScheduler implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(WeightedTokenScheduler.class);
+    private static final long ERROR_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket tokenBucket;
+    private final long maxWaitNanos;
+    private final List<QueueShare> shares = new ArrayList<>();
+    private long totalDemand;
+
+    WeightedTokenScheduler(TokenBucket tokenBucket, long maxWaitNanos) {
+        this.tokenBucket = tokenBucket;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    synchronized QueueShare register(String queue, String queueUrl, int weight, MeterRegistry meterRegistry) {
+        QueueShare share = new QueueShare(queue, queueUrl, weight, meterRegistry);
+        shares.add(share);
+        meterRegistry.gauge("leakybucket_sqs_queue_demand", Tags.of("queue", queue), share,
+            waiting -> waiting.demand);
+        return share;
+    }
+
+    /**
+     * Blocks until one token has been granted to the queue.
+     */
+    synchronized void awaitToken(QueueShare share) throws InterruptedException {
+        if (share.demand++ == 0) {
+            share.waitingSince = System.nanoTime();
+        }
+        totalDemand++;
+        notifyAll();
+        try {
+            while (share.granted == 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (share.granted > 0) {
+                share.granted--;
+                tokenBucket.addTokens(1L);
+            } else {
+                share.demand--;
+                totalDemand--;
+            }
+            throw e;
+        }
+        share.granted--;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                grantWaitingDemand();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // The waiters keep their demand and are served once the bucket answers again
+                log.error("Could not take tokens for the waiting queues", e);
+                LockSupport.parkNanos(ERROR_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    private void grantWaitingDemand() throws InterruptedException {
+        long wanted;
+        synchronized (this) {
+            while (totalDemand == 0) {
+                wait();
+            }
+            wanted = totalDemand;
+        }
+        long tokens = tokenBucket.tryConsumeAsMuchAsPossible(wanted);
+        if (tokens == 0L) {
+            tokenBucket.consume(1L);
+            tokens = 1L;
+        }
+        long unused = distribute(tokens);
+        if (unused > 0) {
+            // Waiters gave up in the meantime
+            tokenBucket.addTokens(unused);
+        }
+    }
+
+    private synchronized long distribute(long tokens) {
+        long remaining = tokens;
+        for (; remaining > 0 && totalDemand > 0; remaining--) {
+            grant(next());
+        }
+        notifyAll();
+        return remaining;
+    }
+
+    private QueueShare next() {
+        long now = System.nanoTime();
+        QueueShare starving = null;
+        for (QueueShare share : shares) {
+            if (share.demand > 0 && now - share.waitingSince > maxWaitNanos
+                && (starving == null || share.waitingSince - starving.waitingSince < 0)) {
+                starving = share;
+            }
+        }
+        if (starving != null) {
+            starving.starvationGrantsCounter.increment();
+            return starving;
+        }
+
+        int totalWeight = 0;
+        QueueShare best = null;
+        for (QueueShare share : shares) {
+            if (share.demand > 0) {
+                share.currentWeight += share.weight;
+                totalWeight += share.weight;
+                if (best == null || share.currentWeight > best.currentWeight) {
+                    best = share;
+                }
+            }
+        }
+        best.currentWeight -= totalWeight;
+        return best;
+    }
+
+    private void grant(QueueShare share) {
+        share.demand--;
+        totalDemand--;
+        share.granted++;
+        share.tokensCounter.increment();
+        if (share.demand == 0) {
+            // No credit builds up while idle
+            share.currentWeight = 0;
+        } else {
+            share.waitingSince = System.nanoTime();
+        }
+    }
+
+    static final class QueueShare {
+        final String queue;
+        final String queueUrl;
+        private final int weight;
+        private final Counter tokensCounter;
+        private final Counter starvationGrantsCounter;
+        private int currentWeight;
+        private long demand;
+        private long granted;
+        private long waitingSince;
+
+        private QueueShare(String queue, String queueUrl, int weight, MeterRegistry meterRegistry) {
+            this.queue = queue;
+            this.queueUrl = queueUrl;
+            this.weight = weight;
+            this.tokensCounter = meterRegistry.counter("leakybucket_sqs_queue_tokens_total", "queue", queue);
+            this.starvationGrantsCounter = meterRegistry.counter(
+                "leakybucket_sqs_queue_starvation_grants_total", "queue", queue);
+        }
+    }
+}
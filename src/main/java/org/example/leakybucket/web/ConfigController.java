@@ -1,7 +1,8 @@
 package org.example.leakybucket.web;
 
-import org.redisson.api.RBucket;
-import org.redisson.api.RedissonClient;
+import org.example.leakybucket.bucket.KeyedBucketRegistry;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -12,12 +13,12 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/config")
 public class ConfigController {
 
-    public static final String CAPACITY_KEY = "app.bucket.capacity";
+    private final LimitUpdaterService limitUpdaterService;
+    private final KeyedBucketRegistry keyedBucketRegistry;
 
-    private final RedissonClient redissonClient;
-
-    public ConfigController(RedissonClient redissonClient) {
-        this.redissonClient = redissonClient;
+    public ConfigController(LimitUpdaterService limitUpdaterService, KeyedBucketRegistry keyedBucketRegistry) {
+        this.limitUpdaterService = limitUpdaterService;
+        this.keyedBucketRegistry = keyedBucketRegistry;
     }
 
     @PostMapping("/limit/{limit}")
@@ -25,8 +26,22 @@ public class ConfigController {
         if (limit <= 0) {
             return ResponseEntity.badRequest().body("Limit must be a positive integer");
         }
-        RBucket<Integer> bucket = redissonClient.getBucket(CAPACITY_KEY);
-        bucket.set(limit);
-        return ResponseEntity.ok("Stored app.bucket.capacity=" + limit);
+        if (!limitUpdaterService.updateLimit(limit)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body("Stored " + LimitUpdaterService.CAPACITY_KEY + "=" + limit
+                    + " but could not apply it to the shared bucket, it will be retried by the poll");
+        }
+        return ResponseEntity.ok("Stored " + LimitUpdaterService.CAPACITY_KEY + "=" + limit);
+    }
+
+    @PostMapping("/limit/{key}/{limit}")
+    public ResponseEntity<String> updateKeyedBucketLimit(
+        @PathVariable("key") String key,
+        @PathVariable("limit") int limit) {
+        if (limit <= 0) {
+            return ResponseEntity.badRequest().body("Limit must be a positive integer");
+        }
+        keyedBucketRegistry.updateLimit(key, limit);
+        return ResponseEntity.ok("Stored " + KeyedBucketRegistry.CAPACITY_KEY_PREFIX + key + "=" + limit);
     }
 }
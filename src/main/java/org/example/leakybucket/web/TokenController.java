@@ -0,0 +1,103 @@
+package org.example.leakybucket.web;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import org.example.leakybucket.bucket.CoalescingTokenGate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Lets other services calling the same downstream take tokens from the shared budget. Refused
+ * requests are answered with 429. Grants are only known to the instance that made them, so
+ * releases have to be routed to it.
+ */
+@RestController
+@RequestMapping("/tokens")
+public class TokenController {
+
+    private final CoalescingTokenGate tokenGate;
+    private final long maxTokensPerRequest;
+    private final Duration maxTimeout;
+
+    public TokenController(
+        CoalescingTokenGate tokenGate,
+        @Value("${app.tokens.max-per-request:100}") long maxTokensPerRequest,
+        @Value("${app.tokens.max-timeout:PT30S}") String maxTimeout) {
+        this.tokenGate = tokenGate;
+        this.maxTokensPerRequest = maxTokensPerRequest;
+        this.maxTimeout = Duration.parse(maxTimeout);
+    }
+
+    /**
+     * Waits up to {@code timeout} (ISO-8601, capped at {@code app.tokens.max-timeout}) for the tokens.
+     */
+    @PostMapping("/acquire")
+    public CompletableFuture<ResponseEntity<TokenResponse>> acquire(
+        @RequestParam(name = "n", defaultValue = "1") long tokens,
+        @RequestParam(name = "timeout", defaultValue = "PT1S") Duration timeout) {
+        if (invalid(tokens) || timeout.isNegative()) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        Duration capped = timeout.compareTo(maxTimeout) > 0 ? maxTimeout : timeout;
+        return tokenGate.acquire(tokens, capped).thenApply(grant -> respond(tokens, grant));
+    }
+
+    @PostMapping("/try")
+    public CompletableFuture<ResponseEntity<TokenResponse>> tryAcquire(
+        @RequestParam(name = "n", defaultValue = "1") long tokens) {
+        if (invalid(tokens)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return tokenGate.acquire(tokens, Duration.ZERO).thenApply(grant -> respond(tokens, grant));
+    }
+
+    /**
+     * Gives back tokens of a grant that were not used, at most as many as the grant has left.
+     * Unknown, expired or fully released grants, including grants made by another instance, are
+     * answered with 404. When the gate can't take any back before its next window the answer is
+     * 429, and the tokens stay on the grant.
+     */
+    @PostMapping("/release")
+    public ResponseEntity<ReleaseResponse> release(
+        @RequestParam(name = "grant") String grant,
+        @RequestParam(name = "n", defaultValue = "1") long tokens) {
+        if (invalid(tokens)) {
+            return ResponseEntity.badRequest().build();
+        }
+        OptionalLong released = tokenGate.release(grant, tokens);
+        if (released.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (released.getAsLong() == 0) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(new ReleaseResponse(0L));
+        }
+        return ResponseEntity.accepted().body(new ReleaseResponse(released.getAsLong()));
+    }
+
+    private boolean invalid(long tokens) {
+        return tokens <= 0 || tokens > maxTokensPerRequest;
+    }
+
+    private static ResponseEntity<TokenResponse> respond(long tokens, Optional<String> grant) {
+        TokenResponse body = new TokenResponse(tokens, grant.isPresent(), grant.orElse(null));
+        return grant.isPresent()
+            ? ResponseEntity.ok(body)
+            : ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(body);
+    }
+
+    /**
+     * @param grant id to release unused tokens with, null when refused
+     */
+    public record TokenResponse(long tokens, boolean granted, String grant) {
+    }
+
+    public record ReleaseResponse(long released) {
+    }
+}
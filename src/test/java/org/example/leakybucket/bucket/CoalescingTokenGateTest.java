@@ -0,0 +1,182 @@
+package org.example.leakybucket.bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Settles the windows by hand: the window is an hour, so the flusher never runs during a test, and
+ * the bucket refills once an hour, so it holds exactly what the tests leave in it.
+ */
+class CoalescingTokenGateTest {
+
+    private static final String NO_FLUSH = "PT1H";
+    private static final Duration WAIT = Duration.ofSeconds(1);
+    private static final long CAPACITY = 10;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Bucket bucket = Bucket.builder()
+        .addLimit(limit -> limit.capacity(CAPACITY).refillIntervally(CAPACITY, Duration.ofHours(1)))
+        .build();
+    private final LimitUpdaterService limitUpdaterService = mock(LimitUpdaterService.class);
+    private CoalescingTokenGate gate = new CoalescingTokenGate(bucket, limitUpdaterService, meterRegistry,
+        NO_FLUSH, "PT1M");
+
+    @BeforeEach
+    void capacity() {
+        when(limitUpdaterService.capacity()).thenReturn(CAPACITY);
+    }
+
+    @AfterEach
+    void shutdown() {
+        gate.shutdown();
+    }
+
+    @Test
+    void requestsOfOneWindowAreGrantedWithOneBucketCall() {
+        CompletableFuture<Optional<String>> first = gate.acquire(4, WAIT);
+        CompletableFuture<Optional<String>> second = gate.acquire(3, WAIT);
+
+        gate.settle();
+
+        assertThat(first).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        assertThat(second).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        assertThat(bucket.getAvailableTokens()).isEqualTo(3);
+        assertThat(meterRegistry.get("leakybucket_tokens_api_bucket_calls_total").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void blockedRequestHoldsBackTheOnesBehindItButNotTries() {
+        CompletableFuture<Optional<String>> first = gate.acquire(8, WAIT);
+        CompletableFuture<Optional<String>> blocked = gate.acquire(5, WAIT);
+        CompletableFuture<Optional<String>> behind = gate.acquire(2, WAIT);
+        CompletableFuture<Optional<String>> tryOnly = gate.acquire(1, Duration.ZERO);
+
+        gate.settle();
+
+        Optional<String> grant = first.join();
+        assertThat(grant).isPresent();
+        // Two tokens are held, enough for the request behind, but it has to wait its turn
+        assertThat(behind).isNotDone();
+        assertThat(blocked).isNotDone();
+        assertThat(tryOnly).succeedsWithin(WAIT).isEqualTo(Optional.empty());
+
+        assertThat(gate.release(grant.get(), 8)).hasValue(8);
+        gate.settle();
+
+        assertThat(blocked).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        assertThat(behind).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        // With nobody waiting, the tokens still held go back
+        gate.settle();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(3);
+    }
+
+    @Test
+    void requestIsRefusedOnceItsTimeoutHasPassed() throws InterruptedException {
+        bucket.tryConsume(CAPACITY);
+        CompletableFuture<Optional<String>> pending = gate.acquire(1, Duration.ofMillis(1));
+
+        Thread.sleep(10);
+        gate.settle();
+
+        assertThat(pending).succeedsWithin(WAIT).isEqualTo(Optional.empty());
+        assertThat(meterRegistry.get("leakybucket_tokens_api_requests_total").tag("result", "timeout")
+            .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void releaseIsCappedAtWhatTheGrantHasLeft() {
+        CompletableFuture<Optional<String>> pending = gate.acquire(3, WAIT);
+        gate.settle();
+        String grant = pending.join().orElseThrow();
+
+        assertThat(gate.release(grant, 2)).hasValue(2);
+        assertThat(gate.release(grant, 5)).hasValue(1);
+        assertThat(gate.release(grant, 1)).isEmpty();
+        assertThat(gate.release("unknown", 1)).isEmpty();
+
+        gate.settle();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY);
+    }
+
+    @Test
+    void grantCanNoLongerBeReleasedAfterItsTtl() throws InterruptedException {
+        gate.shutdown();
+        gate = new CoalescingTokenGate(bucket, limitUpdaterService, meterRegistry, NO_FLUSH, "PT0.001S");
+        CompletableFuture<Optional<String>> pending = gate.acquire(2, WAIT);
+        gate.settle();
+        String grant = pending.join().orElseThrow();
+
+        Thread.sleep(10);
+
+        assertThat(gate.release(grant, 2)).isEmpty();
+        gate.settle();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY - 2);
+    }
+
+    @Test
+    void waitingRequestHoldsNoMoreThanTheBucketHolds() {
+        bucket.tryConsume(6);
+        CompletableFuture<Optional<String>> first = gate.acquire(8, WAIT);
+        CompletableFuture<Optional<String>> behind = gate.acquire(6, WAIT);
+
+        gate.settle();
+        assertThat(first).isNotDone();
+        assertThat(bucket.getAvailableTokens()).isZero();
+
+        // Refilled: the gate tops up to a full bucket for the two requests, the rest stays
+        bucket.addTokens(CAPACITY);
+        gate.settle();
+
+        assertThat(first).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        assertThat(behind).isNotDone();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(4);
+    }
+
+    @Test
+    void requestForMoreThanTheBucketHoldsIsRefusedAtOnce() {
+        CompletableFuture<Optional<String>> oversized = gate.acquire(CAPACITY + 1, WAIT);
+        CompletableFuture<Optional<String>> behind = gate.acquire(2, WAIT);
+
+        gate.settle();
+
+        assertThat(oversized).succeedsWithin(WAIT).isEqualTo(Optional.empty());
+        assertThat(behind).succeedsWithin(WAIT).isNotEqualTo(Optional.empty());
+        assertThat(meterRegistry.get("leakybucket_tokens_api_requests_total").tag("result", "rejected")
+            .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void releasesBeyondWhatTheBucketHoldsStayOnTheGrant() {
+        String first = grant(6);
+        String second = grant(4);
+        bucket.addTokens(CAPACITY);
+        String third = grant(5);
+
+        assertThat(gate.release(first, 6)).hasValue(6);
+        assertThat(gate.release(second, 4)).hasValue(4);
+        // The gate already has a full bucket to give back
+        assertThat(gate.release(third, 5)).hasValue(0);
+
+        gate.settle();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY);
+        assertThat(gate.release(third, 5)).hasValue(5);
+    }
+
+    private String grant(long tokens) {
+        CompletableFuture<Optional<String>> pending = gate.acquire(tokens, WAIT);
+        gate.settle();
+        return pending.join().orElseThrow();
+    }
+}
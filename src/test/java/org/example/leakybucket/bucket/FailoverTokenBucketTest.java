@@ -0,0 +1,136 @@
+package org.example.leakybucket.bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The shared bucket is a mock that fails until a test lets it answer. The circuit opens after two
+ * failures and stays open for 200 ms; the in-memory bucket refills one token a second, so it hands
+ * out nothing unless a test raises the fallback limit to 10,000 a second.
+ */
+class FailoverTokenBucketTest {
+
+    private static final long FAST_LIMIT = 36_000_000;
+    private static final long SLOW_LIMIT = 3_600;
+    private static final Duration OPEN_DURATION = Duration.ofMillis(200);
+    private static final int CLOSED = 0;
+    private static final int OPEN = 2;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TokenBucket primary = mock(TokenBucket.class);
+    private final ExecutorService redisCalls = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong fallbackLimit = new AtomicLong(SLOW_LIMIT);
+    private final FailoverTokenBucket bucket = new FailoverTokenBucket(primary, redisCalls, scheduler,
+        new MeteredBucketListener(meterRegistry), fallbackLimit::get, Duration.ofHours(1), Duration.ofSeconds(1),
+        2, OPEN_DURATION, meterRegistry);
+
+    @AfterEach
+    void shutdown() {
+        redisCalls.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void circuitOpensAfterTheThresholdAndStopsCallingRedis() {
+        doThrow(new IllegalStateException("redis down")).when(primary).tryConsume(anyLong());
+
+        bucket.tryConsume(1);
+        assertThat(state()).isEqualTo(CLOSED);
+        bucket.tryConsume(1);
+        assertThat(state()).isEqualTo(OPEN);
+        bucket.tryConsume(1);
+
+        verify(primary, times(2)).tryConsume(1);
+        assertThat(meterRegistry.get("leakybucket_bucket_failovers_total").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void successfulProbeClosesTheCircuit() throws InterruptedException {
+        openCircuit();
+        doReturn(true).when(primary).tryConsume(anyLong());
+
+        Thread.sleep(OPEN_DURATION.toMillis() + 10);
+
+        assertThat(bucket.tryConsume(1)).isTrue();
+        assertThat(state()).isEqualTo(CLOSED);
+        bucket.tryConsume(1);
+        verify(primary, times(4)).tryConsume(1);
+    }
+
+    @Test
+    void failedProbeReopensTheCircuit() throws InterruptedException {
+        openCircuit();
+
+        Thread.sleep(OPEN_DURATION.toMillis() + 10);
+        bucket.tryConsume(1);
+
+        assertThat(state()).isEqualTo(OPEN);
+        bucket.tryConsume(1);
+        verify(primary, times(3)).tryConsume(1);
+    }
+
+    @Test
+    void tokensUsedWhileDegradedAreChargedOnRecovery() throws InterruptedException {
+        openCircuit();
+        doAnswer(call -> call.getArgument(0)).when(primary).tryConsumeAsMuchAsPossible(anyLong());
+        doReturn(100L).when(primary).getAvailableTokens();
+        fallbackLimit.set(FAST_LIMIT);
+        bucket.getAvailableTokens();
+        Thread.sleep(10);
+        assertThat(bucket.tryConsumeAsMuchAsPossible(5)).isEqualTo(5);
+        // Returned tokens are not charged
+        bucket.addTokens(2);
+
+        Thread.sleep(OPEN_DURATION.toMillis() + 10);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(100);
+
+        verify(primary, timeout(1000)).tryConsumeAsMuchAsPossible(3);
+        redisCalls.shutdown();
+        assertThat(redisCalls.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(meterRegistry.get("leakybucket_bucket_reconciled_tokens_total").tag("result", "charged")
+            .counter().count()).isEqualTo(3);
+    }
+
+    @Test
+    void inMemoryBucketFollowsTheFallbackLimit() throws InterruptedException {
+        openCircuit();
+        Thread.sleep(20);
+        // One token a second, so nothing has been refilled yet
+        assertThat(bucket.tryConsumeAsMuchAsPossible(1000)).isZero();
+
+        fallbackLimit.set(FAST_LIMIT);
+        bucket.tryConsume(1);
+        Thread.sleep(20);
+
+        assertThat(bucket.tryConsumeAsMuchAsPossible(1000)).isGreaterThanOrEqualTo(100);
+    }
+
+    private void openCircuit() {
+        doThrow(new IllegalStateException("redis down")).when(primary).tryConsume(anyLong());
+        bucket.tryConsume(1);
+        bucket.tryConsume(1);
+        assertThat(state()).isEqualTo(OPEN);
+    }
+
+    private double state() {
+        return meterRegistry.get("leakybucket_bucket_failover_state").gauge().value();
+    }
+}
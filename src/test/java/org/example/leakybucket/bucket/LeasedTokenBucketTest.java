@@ -0,0 +1,124 @@
+package org.example.leakybucket.bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The shared bucket is a local one refilling once an hour, so it holds exactly what the lease
+ * leaves in it during a test.
+ */
+class LeasedTokenBucketTest {
+
+    private static final long SHARED_TOKENS = 100;
+    private static final long MIN_LEASE = 10;
+    private static final long MAX_LEASE = 50;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MeteredBucketListener listener = new MeteredBucketListener(meterRegistry);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Bucket sharedBucket = sharedBucket(SHARED_TOKENS);
+
+    @AfterEach
+    void shutdownScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void firstConsumeLeasesTheMinimumLeaseSize() {
+        LeasedTokenBucket bucket = leasedBucket(sharedBucket, Duration.ofHours(1));
+
+        assertThat(bucket.tryConsume(1)).isTrue();
+
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - MIN_LEASE);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 1);
+        assertThat(leased()).isEqualTo(MIN_LEASE);
+    }
+
+    @Test
+    void leaseIsRenewedOnlyOnceTheLocalTokensRunOut() {
+        LeasedTokenBucket bucket = leasedBucket(sharedBucket, Duration.ofHours(1));
+
+        for (int i = 0; i < MIN_LEASE; i++) {
+            assertThat(bucket.tryConsume(1)).isTrue();
+        }
+        assertThat(meterRegistry.get("leakybucket_bucket_lease_total").counter().count()).isEqualTo(1);
+
+        assertThat(bucket.tryConsume(1)).isTrue();
+        assertThat(meterRegistry.get("leakybucket_bucket_lease_total").counter().count()).isEqualTo(2);
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 2 * MIN_LEASE);
+    }
+
+    @Test
+    void leaseNeverTakesMoreThanTheSharedBucketHas() {
+        Bucket nearlyEmpty = sharedBucket(3);
+        LeasedTokenBucket bucket = leasedBucket(nearlyEmpty, Duration.ofHours(1));
+
+        assertThat(bucket.tryConsumeAsMuchAsPossible(5)).isEqualTo(3);
+        assertThat(bucket.tryConsume(1)).isFalse();
+        assertThat(nearlyEmpty.getAvailableTokens()).isZero();
+    }
+
+    @Test
+    void leftoversStayLeasedUntilTheLeaseExpires() {
+        LeasedTokenBucket bucket = leasedBucket(sharedBucket, Duration.ofHours(1));
+        bucket.tryConsume(1);
+
+        bucket.expireLease();
+
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - MIN_LEASE);
+        assertThat(returned()).isZero();
+    }
+
+    @Test
+    void expiredLeaseReturnsItsLeftoversToTheSharedBucket() {
+        LeasedTokenBucket bucket = leasedBucket(sharedBucket, Duration.ZERO);
+        bucket.tryConsume(1);
+
+        bucket.expireLease();
+
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 1);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 1);
+        assertThat(returned()).isEqualTo(MIN_LEASE - 1);
+    }
+
+    @Test
+    void shutdownReturnsLeftoversAndRefunds() {
+        LeasedTokenBucket bucket = leasedBucket(sharedBucket, Duration.ofHours(1));
+        bucket.tryConsume(4);
+        bucket.addTokens(2);
+
+        bucket.returnLeftovers();
+
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 2);
+        assertThat(returned()).isEqualTo(MIN_LEASE - 2);
+        // Nothing is returned twice
+        bucket.returnLeftovers();
+        assertThat(sharedBucket.getAvailableTokens()).isEqualTo(SHARED_TOKENS - 2);
+    }
+
+    private LeasedTokenBucket leasedBucket(Bucket shared, Duration leaseDuration) {
+        return new LeasedTokenBucket(shared, scheduler, listener, leaseDuration, MIN_LEASE, MAX_LEASE, meterRegistry);
+    }
+
+    private double leased() {
+        return meterRegistry.get("leakybucket_bucket_lease_tokens_total").tag("action", "leased").counter().count();
+    }
+
+    private double returned() {
+        return meterRegistry.get("leakybucket_bucket_lease_tokens_total").tag("action", "returned").counter().count();
+    }
+
+    private static Bucket sharedBucket(long tokens) {
+        return Bucket.builder()
+            .addLimit(limit -> limit.capacity(SHARED_TOKENS).refillIntervally(SHARED_TOKENS, Duration.ofHours(1))
+                .initialTokens(tokens))
+            .build();
+    }
+}
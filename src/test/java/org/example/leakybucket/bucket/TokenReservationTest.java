@@ -0,0 +1,73 @@
+package org.example.leakybucket.bucket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reservations on a direct bucket over a local one refilling once an hour, so it holds exactly
+ * what the tests leave in it.
+ */
+class TokenReservationTest {
+
+    private static final long CAPACITY = 10;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Bucket bucket = Bucket.builder()
+        .addLimit(limit -> limit.capacity(CAPACITY).refillIntervally(CAPACITY, Duration.ofHours(1)))
+        .build();
+    private final TokenBucket tokenBucket =
+        new DirectTokenBucket(bucket, scheduler, new MeteredBucketListener(meterRegistry));
+
+    @AfterEach
+    void shutdownScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void commitKeepsTheUsedTokensAndReturnsTheRest() throws InterruptedException {
+        try (TokenReservation reservation = tokenBucket.reserve(6)) {
+            reservation.commit(2);
+        }
+
+        assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY - 2);
+        assertThat(reservationTokens("committed")).isEqualTo(2);
+        assertThat(reservationTokens("returned")).isEqualTo(4);
+    }
+
+    @Test
+    void uncommittedReservationReturnsEverything() throws InterruptedException {
+        try (TokenReservation reservation = tokenBucket.reserve(6)) {
+            assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY - 6);
+        }
+
+        assertThat(bucket.getAvailableTokens()).isEqualTo(CAPACITY);
+        assertThat(reservationTokens("returned")).isEqualTo(6);
+    }
+
+    @Test
+    void reservationTakesNoMoreThanTheBucketHolds() throws InterruptedException {
+        bucket.tryConsume(7);
+
+        try (TokenReservation reservation = tokenBucket.reserve(CAPACITY + 5)) {
+            assertThat(reservation.tokens()).isEqualTo(3);
+            reservation.commit(CAPACITY + 5);
+        }
+
+        assertThat(bucket.getAvailableTokens()).isZero();
+        assertThat(reservationTokens("reserved")).isEqualTo(3);
+        assertThat(reservationTokens("returned")).isZero();
+    }
+
+    private double reservationTokens(String action) {
+        return meterRegistry.get("leakybucket_bucket_reservation_tokens_total").tag("action", action)
+            .counter().count();
+    }
+}
@@ -0,0 +1,124 @@
+package org.example.leakybucket.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.example.leakybucket.sqs.MessageProcessor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RBucket;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+/**
+ * Records handler calls the way the consumers do and checks the limit the controller applies. The
+ * lease is always free, so the controller leads unless a test takes it away.
+ */
+class AdaptiveLimitControllerTest {
+
+    private static final long APPLIED_LIMIT = 1000;
+    private static final long OPERATOR_LIMIT = 2000;
+    private static final Duration FAST = Duration.ofMillis(10);
+    private static final Duration SLOW = Duration.ofSeconds(2);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final LimitUpdaterService limitUpdaterService = mock(LimitUpdaterService.class);
+    private final RedissonClient redissonClient = mock(RedissonClient.class);
+    @SuppressWarnings("unchecked")
+    private final RBucket<String> lease = mock(RBucket.class);
+    private AdaptiveLimitController controller;
+
+    @BeforeEach
+    void setUp() {
+        when(limitUpdaterService.appliedLimit()).thenReturn(APPLIED_LIMIT);
+        when(limitUpdaterService.operatorLimit()).thenReturn(OPERATOR_LIMIT);
+        when(redissonClient.<String>getBucket(AdaptiveLimitController.LEADER_KEY, StringCodec.INSTANCE))
+            .thenReturn(lease);
+        when(lease.setIfAbsent(eq("test"), any(Duration.class))).thenReturn(true);
+        controller = new AdaptiveLimitController(limitUpdaterService, redissonClient, meterRegistry, "test",
+            "PT5S", MessageProcessor.HANDLER_TIMER, 0.95, "PT0.5S", 0.05, 100, 0.5, 60, 5);
+    }
+
+    @Test
+    void fastErrorFreeCallsRaiseTheLimitByOneStep() {
+        record("success", FAST, 10);
+
+        controller.adjust();
+
+        verify(limitUpdaterService).applyEffectiveLimit(1100);
+    }
+
+    @Test
+    void slowCallsCutTheLimit() {
+        record("success", SLOW, 10);
+
+        controller.adjust();
+
+        verify(limitUpdaterService).applyEffectiveLimit(500);
+    }
+
+    @Test
+    void failedCallsAreCountedOnceInTheErrorRate() {
+        record("success", FAST, 9);
+        record("error", FAST, 1);
+
+        controller.adjust();
+
+        assertThat(meterRegistry.get("leakybucket_adaptive_observed_error_rate").gauge().value()).isEqualTo(0.1);
+        verify(limitUpdaterService).applyEffectiveLimit(500);
+    }
+
+    @Test
+    void tooFewCallsHoldTheLimit() {
+        record("error", SLOW, 4);
+
+        controller.adjust();
+
+        verify(limitUpdaterService).applyEffectiveLimit(1000);
+        assertThat(meterRegistry.get("leakybucket_adaptive_decisions_total").tag("decision", "hold")
+            .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void onlyTheCallsSinceTheLastIntervalCount() {
+        record("success", SLOW, 10);
+        controller.adjust();
+
+        record("success", FAST, 10);
+        controller.adjust();
+
+        verify(limitUpdaterService).applyEffectiveLimit(500);
+        verify(limitUpdaterService).applyEffectiveLimit(600);
+    }
+
+    @Test
+    void limitIsLeftAloneWithoutTheLease() {
+        when(lease.setIfAbsent(eq("test"), any(Duration.class))).thenReturn(false);
+        record("success", SLOW, 10);
+
+        controller.adjust();
+
+        verify(limitUpdaterService, never()).applyEffectiveLimit(anyInt());
+    }
+
+    private void record(String outcome, Duration duration, int calls) {
+        Timer timer = Timer.builder(MessageProcessor.HANDLER_TIMER)
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofSeconds(30))
+            .register(meterRegistry);
+        for (int i = 0; i < calls; i++) {
+            timer.record(duration);
+        }
+    }
+}
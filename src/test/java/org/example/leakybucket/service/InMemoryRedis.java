@@ -0,0 +1,111 @@
+package org.example.leakybucket.service;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.redisson.api.RBucket;
+import org.redisson.api.RMap;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.Codec;
+
+/**
+ * Stands in for Redis with string keys, string hashes and the lease renewal script of
+ * {@link LeaderLease}, on a clock the test moves forward. Only the calls the services make are
+ * answered, any other gets the Mockito default.
+ */
+class InMemoryRedis {
+
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<String, Long> expiresAt = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final RedissonClient client = mock(RedissonClient.class);
+    private long nowMillis;
+
+    InMemoryRedis() {
+        when(client.getBucket(anyString(), any(Codec.class))).thenAnswer(call -> bucket(call.getArgument(0)));
+        when(client.getMap(anyString(), any(Codec.class))).thenAnswer(call -> map(call.getArgument(0)));
+        when(client.getScript(any(Codec.class))).thenAnswer(call -> script());
+    }
+
+    RedissonClient client() {
+        return client;
+    }
+
+    void advance(Duration duration) {
+        nowMillis += duration.toMillis();
+    }
+
+    String get(String key) {
+        Long expiry = expiresAt.get(key);
+        if (expiry != null && expiry <= nowMillis) {
+            values.remove(key);
+            expiresAt.remove(key);
+        }
+        return values.get(key);
+    }
+
+    Map<String, String> hash(String key) {
+        return hashes.computeIfAbsent(key, name -> new HashMap<>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private RBucket<String> bucket(String key) {
+        return mock(RBucket.class, call -> switch (call.getMethod().getName()) {
+            case "get" -> get(key);
+            case "setIfAbsent" -> {
+                if (get(key) != null) {
+                    yield false;
+                }
+                values.put(key, call.getArgument(0));
+                expiresAt.put(key, nowMillis + call.<Duration>getArgument(1).toMillis());
+                yield true;
+            }
+            default -> RETURNS_DEFAULTS.answer(call);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private RMap<String, String> map(String key) {
+        Map<String, String> hash = hash(key);
+        return mock(RMap.class, call -> switch (call.getMethod().getName()) {
+            case "get" -> hash.get(call.getArgument(0));
+            case "fastPut" -> hash.put(call.getArgument(0), call.getArgument(1)) == null;
+            case "putAll" -> {
+                hash.putAll(call.getArgument(0));
+                yield null;
+            }
+            case "readAllMap" -> new HashMap<>(hash);
+            case "fastRemove" -> {
+                long removed = 0;
+                for (Object field : call.getArguments()) {
+                    removed += hash.remove(field) == null ? 0 : 1;
+                }
+                yield removed;
+            }
+            default -> RETURNS_DEFAULTS.answer(call);
+        });
+    }
+
+    // Arguments of eval: key, mode, script, return type, keys, then the instance id and the millis
+    private RScript script() {
+        return mock(RScript.class, call -> {
+            if (!call.getMethod().getName().equals("eval")) {
+                return RETURNS_DEFAULTS.answer(call);
+            }
+            String key = call.<List<Object>>getArgument(4).get(0).toString();
+            if (!call.getArgument(5).equals(get(key))) {
+                return false;
+            }
+            expiresAt.put(key, nowMillis + Long.parseLong(call.getArgument(6)));
+            return true;
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package org.example.leakybucket.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisConnectionException;
+import org.redisson.client.codec.Codec;
+
+/**
+ * Two instances competing for a three-second lease on the in-memory Redis.
+ */
+class LeaderLeaseTest {
+
+    private static final String KEY = "test.leader";
+    private static final Duration DURATION = Duration.ofSeconds(3);
+
+    private final InMemoryRedis redis = new InMemoryRedis();
+    private final LeaderLease first = new LeaderLease(redis.client(), KEY, "first", DURATION);
+    private final LeaderLease second = new LeaderLease(redis.client(), KEY, "second", DURATION);
+
+    @Test
+    void onlyOneInstanceHoldsTheLease() {
+        assertThat(first.acquireOrRenew()).isTrue();
+        assertThat(second.acquireOrRenew()).isFalse();
+        assertThat(redis.get(KEY)).isEqualTo("first");
+    }
+
+    @Test
+    void holderKeepsTheLeaseByRenewingIt() {
+        first.acquireOrRenew();
+
+        for (int i = 0; i < 5; i++) {
+            redis.advance(Duration.ofSeconds(2));
+            assertThat(first.acquireOrRenew()).isTrue();
+            assertThat(second.acquireOrRenew()).isFalse();
+        }
+    }
+
+    @Test
+    void otherInstanceTakesOverOnceTheLeaseExpires() {
+        first.acquireOrRenew();
+
+        redis.advance(DURATION);
+
+        assertThat(second.acquireOrRenew()).isTrue();
+        // The former holder must not renew the lease of the new one
+        assertThat(first.acquireOrRenew()).isFalse();
+        redis.advance(Duration.ofSeconds(2));
+        assertThat(second.acquireOrRenew()).isTrue();
+        assertThat(redis.get(KEY)).isEqualTo("second");
+    }
+
+    @Test
+    void unreachableRedisMeansNotTheLeader() {
+        RedissonClient unreachable = mock(RedissonClient.class);
+        when(unreachable.getBucket(anyString(), any(Codec.class)))
+            .thenThrow(new RedisConnectionException("connection refused"));
+
+        assertThat(new LeaderLease(unreachable, KEY, "first", DURATION).acquireOrRenew()).isFalse();
+    }
+}
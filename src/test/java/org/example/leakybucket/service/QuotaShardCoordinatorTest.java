@@ -0,0 +1,123 @@
+package org.example.leakybucket.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.redisson.client.codec.StringCodec;
+
+/**
+ * The split itself as a table, and rebalancing by instance {@code a} as the leader on the
+ * in-memory Redis, with the other instances' reports written into it by hand. Instance {@code a}
+ * consumes nothing, so it reports no usage.
+ */
+class QuotaShardCoordinatorTest {
+
+    private static final long LIMIT = 1000;
+
+    private final InMemoryRedis redis = new InMemoryRedis();
+    private final LimitUpdaterService limitUpdaterService = mock(LimitUpdaterService.class);
+    private final InstanceRegistry instanceRegistry = mock(InstanceRegistry.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    static Stream<Arguments> fairShares() {
+        return Stream.of(
+            // Nobody uses anything: an even split, the remainder of the division stays unassigned
+            Arguments.of(1.0, List.of("a", "b"), Map.of(), Map.of("a", 500L, "b", 500L)),
+            Arguments.of(1.0, List.of("a", "b", "c"), Map.of(), Map.of("a", 333L, "b", 333L, "c", 333L)),
+            // The small user gets all it asks for, the big one the rest
+            Arguments.of(1.0, List.of("a", "b"), Map.of("a", 100L, "b", 2000L), Map.of("a", 100L, "b", 900L)),
+            Arguments.of(1.0, List.of("a", "b", "c"), Map.of("a", 100L, "b", 300L, "c", 900L),
+                Map.of("a", 100L, "b", 300L, "c", 600L)),
+            // What nobody needs is split evenly on top
+            Arguments.of(1.0, List.of("a", "b"), Map.of("a", 100L, "b", 200L), Map.of("a", 450L, "b", 550L)),
+            // Headroom is added to the usage before splitting
+            Arguments.of(1.2, List.of("a", "b"), Map.of("a", 100L, "b", 2000L), Map.of("a", 120L, "b", 880L)),
+            // A joining instance has not reported usage yet and waits for its first report
+            Arguments.of(1.2, List.of("a", "b", "c"), Map.of("a", 600L, "b", 400L),
+                Map.of("a", 520L, "b", 480L, "c", 0L)),
+            // Reports of instances that left are ignored, their share goes to the others
+            Arguments.of(1.0, List.of("a", "b"), Map.of("a", 600L, "b", 200L, "c", 200L),
+                Map.of("a", 700L, "b", 300L)));
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void fairShares(double headroom, List<String> instances, Map<String, Long> usage, Map<String, Long> expected) {
+        assertThat(QuotaShardCoordinator.fairShares(LIMIT, instances, usage, headroom)).isEqualTo(expected);
+    }
+
+    @Test
+    void joiningInstanceGrowsOnlyIntoCapacityTheOthersHaveGivenUp() {
+        QuotaShardCoordinator coordinator = coordinator(List.of("a", "b", "c"));
+        slices(Map.of("a", "500", "b", "500"));
+        applied(Map.of("a", "500", "b", "500"));
+        redis.hash(QuotaShardCoordinator.USAGE_KEY).putAll(Map.of("b", "400", "c", "400"));
+
+        coordinator.rebalance();
+
+        // a and b shrink right away, c waits until they have applied their smaller slices
+        assertThat(redis.hash(QuotaShardCoordinator.SLICES_KEY))
+            .containsExactlyInAnyOrderEntriesOf(Map.of("a", "13", "b", "493", "c", "0"));
+
+        redis.hash(QuotaShardCoordinator.APPLIED_KEY).put("b", "493");
+        coordinator.rebalance();
+
+        assertThat(redis.hash(QuotaShardCoordinator.SLICES_KEY))
+            .containsExactlyInAnyOrderEntriesOf(Map.of("a", "13", "b", "493", "c", "493"));
+    }
+
+    @Test
+    void sliceOfALeavingInstanceGoesToTheOthers() {
+        QuotaShardCoordinator coordinator = coordinator(List.of("a"));
+        slices(Map.of("a", "500", "b", "500"));
+        applied(Map.of("a", "500", "b", "500"));
+        redis.hash(QuotaShardCoordinator.USAGE_KEY).put("b", "500");
+
+        coordinator.rebalance();
+
+        assertThat(redis.hash(QuotaShardCoordinator.SLICES_KEY)).containsExactlyEntriesOf(Map.of("a", "1000"));
+        assertThat(redis.hash(QuotaShardCoordinator.APPLIED_KEY)).doesNotContainKey("b");
+        assertThat(redis.hash(QuotaShardCoordinator.USAGE_KEY)).doesNotContainKey("b");
+    }
+
+    @Test
+    void onlyTheLeaseHolderAssignsSlices() {
+        redis.client().getBucket(QuotaShardCoordinator.LEADER_KEY, StringCodec.INSTANCE)
+            .setIfAbsent("b", Duration.ofMinutes(1));
+        QuotaShardCoordinator coordinator = coordinator(List.of("a", "b"));
+        slices(Map.of("a", "500", "b", "500"));
+
+        coordinator.rebalance();
+
+        assertThat(redis.hash(QuotaShardCoordinator.SLICES_KEY))
+            .containsExactlyInAnyOrderEntriesOf(Map.of("a", "500", "b", "500"));
+        assertThat(redis.hash(QuotaShardCoordinator.APPLIED_KEY)).containsEntry("a", "500");
+    }
+
+    private QuotaShardCoordinator coordinator(List<String> live) {
+        when(limitUpdaterService.appliedLimit()).thenReturn(LIMIT);
+        when(instanceRegistry.instanceId()).thenReturn("a");
+        when(instanceRegistry.liveInstances()).thenReturn(live);
+        return new QuotaShardCoordinator(limitUpdaterService, instanceRegistry, redis.client(),
+            new MeteredBucketListener(meterRegistry), meterRegistry, "PT1H", "PT5S", 1.2);
+    }
+
+    private void slices(Map<String, String> slices) {
+        redis.hash(QuotaShardCoordinator.SLICES_KEY).putAll(slices);
+    }
+
+    private void applied(Map<String, String> applied) {
+        redis.hash(QuotaShardCoordinator.APPLIED_KEY).putAll(applied);
+    }
+}
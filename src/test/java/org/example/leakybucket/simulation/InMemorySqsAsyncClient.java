@@ -0,0 +1,79 @@
+package org.example.leakybucket.simulation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * One in-memory queue behind the calls the manual consumer makes. Received messages stay in flight
+ * until deleted; nothing fails in the simulation, so they are never redelivered.
+ */
+class InMemorySqsAsyncClient implements SqsAsyncClient {
+
+    private final Deque<Message> visible = new ArrayDeque<>();
+    private final Map<String, Message> inFlight = new HashMap<>();
+    private long sent;
+
+    synchronized void send(int count) {
+        for (int i = 0; i < count; i++) {
+            String id = String.valueOf(sent++);
+            visible.add(Message.builder().messageId(id).receiptHandle(id).body("message-" + id).build());
+        }
+    }
+
+    synchronized long sent() {
+        return sent;
+    }
+
+    @Override
+    public synchronized CompletableFuture<ReceiveMessageResponse> receiveMessage(ReceiveMessageRequest request) {
+        int max = request.maxNumberOfMessages() == null ? 1 : request.maxNumberOfMessages();
+        List<Message> messages = new ArrayList<>(max);
+        while (messages.size() < max && !visible.isEmpty()) {
+            Message message = visible.poll();
+            inFlight.put(message.receiptHandle(), message);
+            messages.add(message);
+        }
+        return CompletableFuture.completedFuture(ReceiveMessageResponse.builder().messages(messages).build());
+    }
+
+    @Override
+    public synchronized CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatch(
+        DeleteMessageBatchRequest request) {
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+        for (DeleteMessageBatchRequestEntry entry : request.entries()) {
+            inFlight.remove(entry.receiptHandle());
+            successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+        }
+        return CompletableFuture.completedFuture(DeleteMessageBatchResponse.builder().successful(successful).build());
+    }
+
+    @Override
+    public synchronized CompletableFuture<DeleteMessageResponse> deleteMessage(DeleteMessageRequest request) {
+        inFlight.remove(request.receiptHandle());
+        return CompletableFuture.completedFuture(DeleteMessageResponse.builder().build());
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,77 @@
+package org.example.leakybucket.simulation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.time.Duration;
+import java.util.function.LongToIntFunction;
+import org.example.leakybucket.simulation.SimulationHarness.SimulationReport;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throughput of several manual consumers sharing one limit, checked against the configured limit
+ * without Docker. The reports are logged for comparing runs.
+ */
+class MultiInstanceSimulationTest {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiInstanceSimulationTest.class);
+    private static final long LIMIT = 7200;
+    private static final Duration PERIOD = Duration.ofHours(1);
+    private static final Duration TICK_JITTER = Duration.ofMillis(300);
+    private static final long SEED = 42L;
+    // The bucket refills 2 tokens per second at the default limit
+    private static final long REFILL_PER_SECOND = 2;
+
+    @Test
+    void backlogIsDrainedAtTheConfiguredLimit() {
+        SimulationReport report = simulate(3, Duration.ofHours(2), second -> second == 0 ? 50_000 : 0);
+
+        assertThat(report.achievedPerPeriod()).isCloseTo(LIMIT, within(LIMIT * 0.01));
+        assertThat(report.peakPerSecond()).isLessThanOrEqualTo(report.capacity() + REFILL_PER_SECOND);
+        assertThat(report.tokensWasted()).isZero();
+    }
+
+    @Test
+    void burstAfterIdleTimeIsBoundedByTheCapacity() {
+        Duration idle = Duration.ofMinutes(30);
+        Duration busy = Duration.ofMinutes(90);
+        SimulationReport report = simulate(3, idle.plus(busy),
+            second -> second == idle.toSeconds() ? 20_000 : 0);
+
+        // Nothing but the capacity is saved up while idle
+        long available = report.capacity() + busy.toSeconds() * REFILL_PER_SECOND;
+        assertThat(report.processed()).isLessThanOrEqualTo(available);
+        assertThat(report.processed()).isGreaterThanOrEqualTo(available - report.capacity());
+        assertThat(report.peakPerSecond()).isLessThanOrEqualTo(report.capacity() + REFILL_PER_SECOND);
+        assertThat(report.tokensWasted()).isZero();
+    }
+
+    @Test
+    void sparseTrafficIsProcessedWithoutWastingTokens() {
+        SimulationReport report = simulate(3, Duration.ofHours(1), second -> second % 3 == 0 ? 1 : 0);
+
+        // Receives coming back short return their tokens to the bucket
+        assertThat(report.processed()).isEqualTo(report.offered());
+        assertThat(report.tokensConsumed()).isEqualTo(report.processed());
+        assertThat(report.tokensWasted()).isZero();
+    }
+
+    @Test
+    void runsWithTheSameSeedAreIdentical() {
+        SimulationReport first = simulate(4, Duration.ofMinutes(10), ignored -> 5);
+        SimulationReport second = simulate(4, Duration.ofMinutes(10), ignored -> 5);
+
+        assertThat(second.perInstance()).isEqualTo(first.perInstance());
+        assertThat(second.peakPerSecond()).isEqualTo(first.peakPerSecond());
+    }
+
+    private static SimulationReport simulate(int instances, Duration duration, LongToIntFunction arrivals) {
+        try (SimulationHarness harness = new SimulationHarness(instances, LIMIT, PERIOD, TICK_JITTER, SEED)) {
+            SimulationReport report = harness.run(duration, arrivals);
+            log.info("{} instances, {}", instances, report.summary());
+            return report;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.example.leakybucket.simulation;
+
+import io.github.bucket4j.TimeMeter;
+
+/**
+ * Time source of the simulated buckets, moved forward by the harness only.
+ */
+class SimulatedClock implements TimeMeter {
+
+    private volatile long nanos;
+
+    @Override
+    public long currentTimeNanos() {
+        return nanos;
+    }
+
+    @Override
+    public boolean isWallClockBased() {
+        return false;
+    }
+
+    void set(long nanos) {
+        if (nanos < this.nanos) {
+            throw new IllegalArgumentException("The simulated clock can't go back");
+        }
+        this.nanos = nanos;
+    }
+}
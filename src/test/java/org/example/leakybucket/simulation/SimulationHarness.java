@@ -0,0 +1,216 @@
+package org.example.leakybucket.simulation;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongToIntFunction;
+import org.example.leakybucket.bucket.DirectTokenBucket;
+import org.example.leakybucket.bucket.LocalBucketBackend;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.example.leakybucket.bucket.TokenBucket;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.example.leakybucket.sqs.BatchMessageHandler;
+import org.example.leakybucket.sqs.ConcurrencyLimiter;
+import org.example.leakybucket.sqs.DispatchPacer;
+import org.example.leakybucket.sqs.LeakyBucketSqsManual;
+import org.example.leakybucket.sqs.MessageHandler;
+import org.example.leakybucket.sqs.MessageProcessor;
+import org.example.leakybucket.sqs.SqsDeleteBatcher;
+import org.example.leakybucket.sqs.SqsQueueUrlResolver;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs N instances of the manual polling consumer against one in-memory queue and one shared
+ * bucket, in place of SQS and Redis. The bucket runs on a {@link SimulatedClock}, and every
+ * instance's {@code onSchedule} is called once per simulated second, spread evenly over the
+ * second plus a seeded jitter. Processing runs on the calling thread, so hours of traffic take
+ * seconds and every run with the same seed gives the same result.
+ */
+class SimulationHarness implements AutoCloseable {
+
+    private static final String QUEUE = "leaky-bucket";
+    private static final String BUCKET_KEY = "sqs-global-rate-limit-key";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final SimulatedClock clock = new SimulatedClock();
+    private final InMemorySqsAsyncClient sqs = new InMemorySqsAsyncClient();
+    private final ScheduledExecutorService bucketScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<SimulatedInstance> instances = new ArrayList<>();
+    private final long limit;
+    private final Duration period;
+    private final long capacity;
+    private final long tickJitterNanos;
+    private final Random random;
+    private final Map<Logger, Level> quietedLevels = new HashMap<>();
+    private long[] perSecond = new long[0];
+
+    SimulationHarness(int instanceCount, long limit, Duration period, Duration tickJitter, long seed) {
+        this.limit = limit;
+        this.period = period;
+        this.tickJitterNanos = tickJitter.toNanos();
+        this.random = new Random(seed);
+        quietPerRunLogging();
+
+        BucketConfiguration configuration = LimitUpdaterService.createNewConfiguration(limit, period);
+        this.capacity = configuration.getBandwidths()[0].getCapacity();
+        Bucket sharedBucket = new LocalBucketBackend(clock).resolve(BUCKET_KEY, () -> configuration);
+        for (int i = 0; i < instanceCount; i++) {
+            instances.add(new SimulatedInstance(i, sharedBucket));
+        }
+    }
+
+    /**
+     * @param arrivals messages sent to the queue at the start of each simulated second
+     */
+    SimulationReport run(Duration duration, LongToIntFunction arrivals) {
+        long seconds = duration.toSeconds();
+        perSecond = new long[Math.toIntExact(seconds)];
+        long wallStart = System.nanoTime();
+        for (long second = 0; second < seconds; second++) {
+            long secondStart = second * NANOS_PER_SECOND;
+            clock.set(secondStart);
+            sqs.send(arrivals.applyAsInt(second));
+            for (long[] tick : ticksWithin(secondStart)) {
+                clock.set(tick[0]);
+                instances.get((int) tick[1]).consumer.onSchedule();
+            }
+        }
+        instances.forEach(instance -> instance.deleteBatcher.shutdown());
+        return report(duration, Duration.ofNanos(System.nanoTime() - wallStart));
+    }
+
+    @Override
+    public void close() {
+        bucketScheduler.shutdownNow();
+        quietedLevels.forEach(Logger::setLevel);
+    }
+
+    // {time, instance} pairs in the order they happen
+    private List<long[]> ticksWithin(long secondStart) {
+        List<long[]> ticks = new ArrayList<>(instances.size());
+        for (int i = 0; i < instances.size(); i++) {
+            long offset = i * NANOS_PER_SECOND / instances.size();
+            long jitter = tickJitterNanos == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * tickJitterNanos);
+            long at = Math.max(0, Math.min(NANOS_PER_SECOND - 1, offset + jitter));
+            ticks.add(new long[] {secondStart + at, i});
+        }
+        ticks.sort(Comparator.comparingLong(tick -> tick[0]));
+        return ticks;
+    }
+
+    private void onProcessed(int instance) {
+        instances.get(instance).processed++;
+        perSecond[(int) (clock.currentTimeNanos() / NANOS_PER_SECOND)]++;
+    }
+
+    private SimulationReport report(Duration duration, Duration wallTime) {
+        long[] perInstance = instances.stream().mapToLong(instance -> instance.processed).toArray();
+        long processed = Arrays.stream(perInstance).sum();
+        long consumed = Math.round(instances.stream().mapToDouble(instance -> instance.listener.consumedTokens()).sum());
+        double periods = (double) duration.toNanos() / period.toNanos();
+        double mean = (double) processed / perInstance.length;
+        long min = Arrays.stream(perInstance).min().orElse(0L);
+        long max = Arrays.stream(perInstance).max().orElse(0L);
+        long peak = Arrays.stream(perSecond).max().orElse(0L);
+        double limitPerSecond = (double) limit * NANOS_PER_SECOND / period.toNanos();
+        return new SimulationReport(
+            duration,
+            wallTime,
+            limit,
+            capacity,
+            sqs.sent(),
+            processed,
+            processed / periods,
+            peak,
+            peak / limitPerSecond,
+            consumed,
+            consumed - processed,
+            Arrays.stream(perInstance).boxed().toList(),
+            mean == 0 ? 0 : (max - min) / mean);
+    }
+
+    // onSchedule logs twice per call, which would dominate the run time. Restored by close().
+    private void quietPerRunLogging() {
+        for (Class<?> type : List.of(LeakyBucketSqsManual.class, MessageProcessor.class)) {
+            Logger logger = (Logger) LoggerFactory.getLogger(type);
+            // A null level means the logger inherits its parent's, and setting null restores that
+            quietedLevels.put(logger, logger.getLevel());
+            logger.setLevel(Level.WARN);
+        }
+    }
+
+    /**
+     * @param achievedPerPeriod processed messages per {@code app.bucket.period}, to compare with the limit
+     * @param burstiness        busiest second relative to the limit spread evenly
+     * @param tokensWasted      tokens taken from the bucket without a message to spend them on
+     * @param skew              spread of the messages processed per instance, relative to their mean
+     */
+    record SimulationReport(
+        Duration simulated,
+        Duration wallTime,
+        long limit,
+        long capacity,
+        long offered,
+        long processed,
+        double achievedPerPeriod,
+        long peakPerSecond,
+        double burstiness,
+        long tokensConsumed,
+        long tokensWasted,
+        List<Long> perInstance,
+        double skew) {
+
+        String summary() {
+            return String.format(
+                "simulated %s in %d ms: %d of %d messages, %.1f per period against a limit of %d, "
+                    + "peak %d/s (burstiness %.1f), %d tokens wasted, per instance %s (skew %.2f)",
+                simulated, wallTime.toMillis(), processed, offered, achievedPerPeriod, limit,
+                peakPerSecond, burstiness, tokensWasted, perInstance, skew);
+        }
+    }
+
+    private final class SimulatedInstance {
+        private final MeteredBucketListener listener;
+        private final SqsDeleteBatcher deleteBatcher;
+        private final LeakyBucketSqsManual consumer;
+        private long processed;
+
+        private SimulatedInstance(int index, Bucket sharedBucket) {
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            this.listener = new MeteredBucketListener(meterRegistry);
+            this.deleteBatcher = new SqsDeleteBatcher(sqs, meterRegistry, "PT0.05S");
+            MessageHandler handler = message -> onProcessed(index);
+            TokenBucket tokenBucket = new DirectTokenBucket(sharedBucket.toListenable(listener), bucketScheduler, listener);
+            // No message carries the tenant attribute, so the per-key buckets are never resolved
+            MessageProcessor processor = new MessageProcessor(handler, BatchMessageHandler.perMessage(handler),
+                deleteBatcher, null, tokenBucket, sqs, meterRegistry, "tenant", "per-message");
+            // Pacing is off, so the limit it would read the rate from is never needed
+            DispatchPacer dispatchPacer = new DispatchPacer(null, meterRegistry, false, 1);
+            this.consumer = new LeakyBucketSqsManual(
+                tokenBucket,
+                sqs,
+                processor,
+                new ConcurrencyLimiter(meterRegistry, 20, 1, 100, 0.2),
+                dispatchPacer,
+                meterRegistry,
+                Runnable::run,
+                new SqsQueueUrlResolver("http://sqs.simulated"),
+                QUEUE,
+                "single",
+                "per-message");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.leakybucket.sqs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tasks run on the test thread right after they are tracked, so their latency is the time they
+ * sleep. A round fills every slot and completes the tasks one by one, the first half of them with
+ * the limiter at least half full.
+ */
+class ConcurrencyLimiterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void tryAcquireGrantsWhatIsLeftUnderTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 5, 1, 10, 0.2);
+
+        assertThat(limiter.tryAcquire(3)).isEqualTo(3);
+        assertThat(limiter.tryAcquire(4)).isEqualTo(2);
+        assertThat(limiter.tryAcquire(1)).isZero();
+
+        assertThat(limiter.inFlight()).isEqualTo(5);
+        assertThat(meterRegistry.get("leakybucket_concurrency_rejected_total").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void releasedAndCompletedSlotsCanBeAcquiredAgain() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 5, 1, 10, 0.2);
+        limiter.tryAcquire(5);
+
+        limiter.release(2);
+        limiter.track(() -> { }).run();
+
+        assertThat(limiter.inFlight()).isEqualTo(2);
+        assertThat(limiter.tryAcquire(5)).isEqualTo(3);
+    }
+
+    @Test
+    void failedTaskStillGivesItsSlotBack() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 5, 1, 10, 0.2);
+        limiter.tryAcquire(1);
+
+        Runnable failing = limiter.track(() -> {
+            throw new IllegalStateException("handler failed");
+        });
+
+        assertThatIllegalStateException().isThrownBy(failing::run);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    @Test
+    void steadyLatencyRaisesTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 10, 1, 100, 0.5);
+
+        for (int i = 0; i < 5; i++) {
+            runRound(limiter, 1);
+        }
+
+        assertThat(limiter.limit()).isGreaterThan(10);
+        assertThat(changes("increase")).isPositive();
+        assertThat(changes("decrease")).isZero();
+    }
+
+    @Test
+    void risingLatencyCutsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 20, 1, 20, 0.5);
+        for (int i = 0; i < 3; i++) {
+            runRound(limiter, 2);
+        }
+        int settled = limiter.limit();
+        double decreases = changes("decrease");
+
+        runRound(limiter, 40);
+
+        assertThat(limiter.limit()).isLessThan(settled);
+        assertThat(changes("decrease")).isGreaterThan(decreases);
+    }
+
+    @Test
+    void limitDoesNotGrowWhileMostSlotsAreUnused() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, 10, 1, 100, 0.5);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.tryAcquire(1);
+            limiter.track(() -> sleep(1)).run();
+        }
+
+        assertThat(limiter.limit()).isEqualTo(10);
+    }
+
+    @Test
+    void initialLimitIsClampedAndBoundsAreValidated() {
+        assertThat(new ConcurrencyLimiter(meterRegistry, 500, 1, 100, 0.2).limit()).isEqualTo(100);
+        assertThatIllegalArgumentException().isThrownBy(() -> new ConcurrencyLimiter(meterRegistry, 20, 0, 100, 0.2));
+        assertThatIllegalArgumentException().isThrownBy(() -> new ConcurrencyLimiter(meterRegistry, 20, 50, 10, 0.2));
+    }
+
+    private double changes(String direction) {
+        return meterRegistry.get("leakybucket_concurrency_limit_changes_total").tag("direction", direction)
+            .counter().count();
+    }
+
+    private static void runRound(ConcurrencyLimiter limiter, long sleepMillis) {
+        int permits = limiter.tryAcquire(limiter.limit());
+        for (int i = 0; i < permits; i++) {
+            limiter.track(() -> sleep(sleepMillis)).run();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
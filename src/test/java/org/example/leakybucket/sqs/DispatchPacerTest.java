@@ -0,0 +1,110 @@
+package org.example.leakybucket.sqs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.example.leakybucket.service.LimitUpdaterService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Paces at 100 dispatches a second, one every 10 ms. Release times are compared with a millisecond
+ * of slack for the scheduler of the machine running the test.
+ */
+class DispatchPacerTest {
+
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Duration WAIT = Duration.ofSeconds(1);
+
+    private final LimitUpdaterService limitUpdaterService = mock(LimitUpdaterService.class);
+    private DispatchPacer pacer;
+
+    @AfterEach
+    void stop() {
+        pacer.stop();
+    }
+
+    @Test
+    void asyncDispatchesAreReleasedInOrderOneIntervalApart() {
+        pacer = startedPacer(true);
+        List<Long> releasedAt = new ArrayList<>();
+        List<CompletableFuture<Void>> dispatches = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            dispatches.add(pacer.paceAsync().thenRun(() -> {
+                synchronized (releasedAt) {
+                    releasedAt.add(System.nanoTime());
+                }
+            }));
+        }
+
+        assertThat(CompletableFuture.allOf(dispatches.toArray(CompletableFuture[]::new))).succeedsWithin(WAIT);
+        assertThat(releasedAt).isSorted();
+        for (int i = 1; i < releasedAt.size(); i++) {
+            assertThat(releasedAt.get(i) - releasedAt.get(i - 1)).isGreaterThan(INTERVAL_NANOS - SLACK_NANOS);
+        }
+    }
+
+    @Test
+    void laterSlotQueuedFirstDoesNotHoldBackAnEarlierOne() {
+        pacer = startedPacer(true);
+        pacer.claimSlot();
+        long earlier = pacer.claimSlot();
+        long later = pacer.claimSlot();
+
+        CompletableFuture<Long> laterRelease = pacer.releaseAt(later).thenApply(ignored -> System.nanoTime());
+        CompletableFuture<Long> earlierRelease = pacer.releaseAt(earlier).thenApply(ignored -> System.nanoTime());
+
+        assertThat(earlierRelease).succeedsWithin(WAIT)
+            .satisfies(releasedAt -> assertThat(releasedAt - later).isNegative());
+        assertThat(laterRelease).succeedsWithin(WAIT)
+            .satisfies(releasedAt -> assertThat(releasedAt - later).isNotNegative());
+    }
+
+    @Test
+    void blockingDispatchesWaitForTheirSlot() throws InterruptedException {
+        pacer = startedPacer(true);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            pacer.pace();
+        }
+
+        assertThat(System.nanoTime() - start).isGreaterThan(2 * INTERVAL_NANOS - SLACK_NANOS);
+    }
+
+    @Test
+    void stopReleasesWhatIsStillWaiting() {
+        pacer = startedPacer(true);
+        pacer.claimSlot();
+        CompletableFuture<Void> waiting = pacer.releaseAt(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+
+        pacer.stop();
+
+        assertThat(waiting).isCompleted();
+    }
+
+    @Test
+    void disabledPacerReleasesRightAway() {
+        pacer = startedPacer(false);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(pacer.paceAsync()).isCompleted();
+        }
+    }
+
+    private DispatchPacer startedPacer(boolean enabled) {
+        when(limitUpdaterService.ratePerSecond()).thenReturn(100.0);
+        DispatchPacer started = new DispatchPacer(limitUpdaterService, new SimpleMeterRegistry(), enabled, 1);
+        started.start();
+        return started;
+    }
+}
@@ -0,0 +1,194 @@
+package org.example.leakybucket.sqs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+
+/**
+ * Flushes triggered by the interval use a short one; everything else uses an hour, so only a full
+ * batch or {@code shutdown()} flushes, the latter on the test thread.
+ */
+class SqsDeleteBatcherTest {
+
+    private static final String QUEUE_URL = "http://sqs.test/queue";
+    private static final String NO_TIMED_FLUSH = "PT1H";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RecordingSqsAsyncClient sqs = new RecordingSqsAsyncClient();
+    private SqsDeleteBatcher batcher;
+
+    @AfterEach
+    void shutdown() {
+        batcher.shutdown();
+    }
+
+    @Test
+    void fullBatchIsSentWithoutWaitingForTheInterval() throws InterruptedException {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+
+        deleteAll(10);
+
+        DeleteMessageBatchRequest batch = sqs.batches.poll(1, TimeUnit.SECONDS);
+        assertThat(batch).isNotNull();
+        assertThat(batch.entries()).extracting(DeleteMessageBatchRequestEntry::receiptHandle)
+            .containsExactly("r0", "r1", "r2", "r3", "r4", "r5", "r6", "r7", "r8", "r9");
+    }
+
+    @Test
+    void partialBatchWaitsForTheInterval() throws InterruptedException {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+
+        deleteAll(9);
+
+        assertThat(sqs.batches.poll(200, TimeUnit.MILLISECONDS)).isNull();
+        batcher.shutdown();
+        DeleteMessageBatchRequest batch = sqs.batches.poll();
+        assertThat(batch).isNotNull();
+        assertThat(batch.entries()).hasSize(9);
+    }
+
+    @Test
+    void partialBatchIsSentOnceTheIntervalElapses() throws InterruptedException {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, "PT0.05S");
+
+        deleteAll(3);
+
+        DeleteMessageBatchRequest batch = sqs.batches.poll(1, TimeUnit.SECONDS);
+        assertThat(batch).isNotNull();
+        assertThat(batch.entries()).hasSize(3);
+    }
+
+    @Test
+    void deletesAreBatchedPerQueue() {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+        // Fewer than ten per queue, so nothing is flushed before the shutdown
+        for (int i = 0; i < 25; i++) {
+            batcher.delete(QUEUE_URL + (i % 3), "r" + i);
+        }
+
+        batcher.shutdown();
+
+        List<DeleteMessageBatchRequest> batches = new ArrayList<>();
+        sqs.batches.drainTo(batches);
+        assertThat(batches).extracting(DeleteMessageBatchRequest::queueUrl)
+            .containsExactlyInAnyOrder(QUEUE_URL + 0, QUEUE_URL + 1, QUEUE_URL + 2);
+        assertThat(batches).flatExtracting(DeleteMessageBatchRequest::entries).hasSize(25);
+    }
+
+    @Test
+    void entriesTheBatchRejectsAreRetriedIndividually() {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+        sqs.failedReceiptHandles.add("r1");
+
+        deleteAll(3);
+        batcher.shutdown();
+
+        assertThat(sqs.singleDeletes).extracting(DeleteMessageRequest::receiptHandle).containsExactly("r1");
+        assertThat(deletes("batched")).isEqualTo(2);
+        assertThat(deletes("retried")).isEqualTo(1);
+        assertThat(deletes("failed")).isZero();
+    }
+
+    @Test
+    void failedBatchCallIsRetriedEntryByEntry() {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+        sqs.failBatches = true;
+
+        deleteAll(3);
+        batcher.shutdown();
+
+        assertThat(sqs.singleDeletes).extracting(DeleteMessageRequest::receiptHandle)
+            .containsExactlyInAnyOrder("r0", "r1", "r2");
+        assertThat(deletes("retried")).isEqualTo(3);
+    }
+
+    @Test
+    void failedRetryIsCountedAndLeftForRedelivery() {
+        batcher = new SqsDeleteBatcher(sqs, meterRegistry, NO_TIMED_FLUSH);
+        sqs.failedReceiptHandles.add("r0");
+        sqs.failSingleDeletes = true;
+
+        deleteAll(2);
+        batcher.shutdown();
+
+        assertThat(deletes("batched")).isEqualTo(1);
+        assertThat(deletes("retried")).isZero();
+        assertThat(deletes("failed")).isEqualTo(1);
+    }
+
+    private void deleteAll(int count) {
+        for (int i = 0; i < count; i++) {
+            batcher.delete(QUEUE_URL, "r" + i);
+        }
+    }
+
+    private double deletes(String result) {
+        return meterRegistry.get("leakybucket_sqs_deletes_total").tag("result", result).counter().count();
+    }
+
+    private static final class RecordingSqsAsyncClient implements SqsAsyncClient {
+        private final BlockingQueue<DeleteMessageBatchRequest> batches = new LinkedBlockingQueue<>();
+        private final List<DeleteMessageRequest> singleDeletes = new ArrayList<>();
+        private final Set<String> failedReceiptHandles = new HashSet<>();
+        private volatile boolean failBatches;
+        private volatile boolean failSingleDeletes;
+
+        @Override
+        public synchronized CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatch(
+            DeleteMessageBatchRequest request) {
+            batches.add(request);
+            if (failBatches) {
+                return CompletableFuture.failedFuture(SdkClientException.create("batch call failed"));
+            }
+            DeleteMessageBatchResponse.Builder response = DeleteMessageBatchResponse.builder();
+            List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+            List<BatchResultErrorEntry> failed = new ArrayList<>();
+            for (DeleteMessageBatchRequestEntry entry : request.entries()) {
+                if (failedReceiptHandles.contains(entry.receiptHandle())) {
+                    failed.add(BatchResultErrorEntry.builder()
+                        .id(entry.id()).code("InternalError").senderFault(false).message("try again").build());
+                } else {
+                    successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+                }
+            }
+            return CompletableFuture.completedFuture(response.successful(successful).failed(failed).build());
+        }
+
+        @Override
+        public synchronized CompletableFuture<DeleteMessageResponse> deleteMessage(DeleteMessageRequest request) {
+            singleDeletes.add(request);
+            if (failSingleDeletes) {
+                return CompletableFuture.failedFuture(SdkClientException.create("delete failed"));
+            }
+            return CompletableFuture.completedFuture(DeleteMessageResponse.builder().build());
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
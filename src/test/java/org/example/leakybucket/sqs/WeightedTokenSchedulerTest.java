@@ -0,0 +1,115 @@
+package org.example.leakybucket.sqs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.bucket4j.Bucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.example.leakybucket.bucket.DirectTokenBucket;
+import org.example.leakybucket.bucket.MeteredBucketListener;
+import org.example.leakybucket.sqs.WeightedTokenScheduler.QueueShare;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every queue has a poller asking for tokens in a loop, like the consumer, against a bucket
+ * refilling 200 tokens a second that holds one at most, so the queues compete at every grant.
+ */
+class WeightedTokenSchedulerTest {
+
+    private static final Duration RUN = Duration.ofSeconds(1);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ScheduledExecutorService bucketScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Bucket bucket = Bucket.builder()
+        .addLimit(limit -> limit.capacity(1).refillGreedy(200, Duration.ofSeconds(1)))
+        .build();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @AfterEach
+    void stopThreads() throws InterruptedException {
+        threads.forEach(Thread::interrupt);
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        }
+        bucketScheduler.shutdownNow();
+    }
+
+    @Test
+    void busyQueuesShareTheTokensByWeight() throws InterruptedException {
+        WeightedTokenScheduler scheduler = scheduler(Duration.ofHours(1));
+        QueueShare heavy = scheduler.register("heavy", "heavy-url", 3, meterRegistry);
+        QueueShare light = scheduler.register("light", "light-url", 1, meterRegistry);
+
+        run(scheduler, heavy, light);
+
+        double heavyTokens = tokens("heavy");
+        double lightTokens = tokens("light");
+        assertThat(heavyTokens + lightTokens).isGreaterThan(100);
+        assertThat(heavyTokens / (heavyTokens + lightTokens)).isBetween(0.65, 0.85);
+        assertThat(starvationGrants("heavy") + starvationGrants("light")).isZero();
+    }
+
+    @Test
+    void idleQueueLeavesItsShareToTheBusyOne() throws InterruptedException {
+        WeightedTokenScheduler scheduler = scheduler(Duration.ofHours(1));
+        QueueShare busy = scheduler.register("busy", "busy-url", 1, meterRegistry);
+        scheduler.register("idle", "idle-url", 10, meterRegistry);
+
+        run(scheduler, busy);
+
+        assertThat(tokens("busy")).isGreaterThan(100);
+        assertThat(tokens("idle")).isZero();
+    }
+
+    @Test
+    void queueWaitingPastTheMaximumIsServedFirst() throws InterruptedException {
+        WeightedTokenScheduler scheduler = scheduler(Duration.ofMillis(20));
+        QueueShare heavy = scheduler.register("heavy", "heavy-url", 100, meterRegistry);
+        QueueShare light = scheduler.register("light", "light-url", 1, meterRegistry);
+
+        run(scheduler, heavy, light);
+
+        double lightTokens = tokens("light");
+        // By weight alone it would get one token in a hundred
+        assertThat(lightTokens / (tokens("heavy") + lightTokens)).isGreaterThan(0.1);
+        assertThat(starvationGrants("light")).isPositive();
+    }
+
+    private WeightedTokenScheduler scheduler(Duration maxWait) {
+        MeteredBucketListener listener = new MeteredBucketListener(meterRegistry);
+        return new WeightedTokenScheduler(new DirectTokenBucket(bucket, bucketScheduler, listener),
+            maxWait.toNanos());
+    }
+
+    private void run(WeightedTokenScheduler scheduler, QueueShare... shares) throws InterruptedException {
+        threads.add(new Thread(scheduler, "test-scheduler"));
+        for (QueueShare share : shares) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (true) {
+                        scheduler.awaitToken(share);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "test-poller-" + share.queue));
+        }
+        threads.forEach(Thread::start);
+        Thread.sleep(RUN.toMillis());
+    }
+
+    private double tokens(String queue) {
+        return meterRegistry.get("leakybucket_sqs_queue_tokens_total").tag("queue", queue).counter().count();
+    }
+
+    private double starvationGrants(String queue) {
+        return meterRegistry.get("leakybucket_sqs_queue_starvation_grants_total").tag("queue", queue)
+            .counter().count();
+    }
+}